@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 /**
  * See the Parser assignment specification for specific notes on each AST class
@@ -11,10 +13,75 @@ import java.util.Optional;
  */
 public abstract class Ast {
 
+    /**
+     * Calls the {@code visit} overload of {@code visitor} for this node's
+     * class, so visiting a node is a single virtual call.
+     */
+    public abstract <T> T accept(Visitor<T> visitor);
+
+    private int hash = 0;
+
+    /**
+     * Returns a hash of the structure of this tree, which is computed once and
+     * then cached. It covers the node's class and the fields set by its
+     * constructor, but not annotations set later, like types and variables,
+     * so it stays the same while the tree is analyzed. The tree must not be
+     * changed in any other way after it is first hashed.
+     *
+     * Since equal trees have equal hashes, {@code equals} compares hashes
+     * before comparing subtrees, which makes unequal trees cheap to tell apart
+     * once they have been hashed.
+     *
+     * Children are hashed before their parents using a stack on the heap, so
+     * hashing a deeply nested tree cannot overflow the call stack.
+     */
+    @Override
+    public final int hashCode() {
+        if (hash == 0) {
+            List<Ast> stack = new ArrayList<>();
+            List<Ast> children = new ArrayList<>();
+            stack.add(this);
+            while (!stack.isEmpty()) {
+                Ast ast = stack.get(stack.size() - 1);
+                children.clear();
+                ast.children(children);
+                boolean ready = true;
+                for (Ast child : children) {
+                    if (child.hash == 0) {
+                        stack.add(child);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.remove(stack.size() - 1);
+                    if (ast.hash == 0) {
+                        //every child is hashed, so this does not recurse
+                        int hash = ast.structuralHash();
+                        ast.hash = hash == 0 ? 1 : hash; //0 is reserved for a hash that is not computed yet
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the hash of this node from the cached hashes of its children.
+     */
+    abstract int structuralHash();
+
+    /**
+     * Adds the children that {@link #structuralHash()} depends on.
+     */
+    abstract void children(List<Ast> children);
+
     public static final class Source extends Ast {
 
         private final List<Global> globals;
         private final List<Ast.Function> functions;
+        //token index of each declaration in input order, if set by the Parser
+        //for Parser.reparse, and not part of the structure
+        int[] declarationStarts = null;
 
         public Source(List<Global> globals, List<Ast.Function> functions) {
             this.globals = globals;
@@ -29,13 +96,30 @@ public abstract class Ast {
             return functions;
         }
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof Source &&
+            return obj == this || obj instanceof Source &&
+                    hashCode() == obj.hashCode() &&
                     globals.equals(((Source) obj).globals) &&
                     functions.equals(((Source) obj).functions);
         }
 
+        @Override
+        int structuralHash() {
+            return Objects.hash("Ast.Source", globals, functions);
+        }
+
+        @Override
+        void children(List<Ast> children) {
+            children.addAll(globals);
+            children.addAll(functions);
+        }
+
         @Override
         public String toString() {
             return "Ast.Source{" +
@@ -94,9 +178,15 @@ public abstract class Ast {
         }
 
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof Global &&
+            return obj == this || obj instanceof Global &&
+                    hashCode() == obj.hashCode() &&
                     name.equals(((Global) obj).name) &&
                     typeName.equals(((Global) obj).typeName) &&
                     mutable == ((Global) obj).mutable &&
@@ -104,6 +194,16 @@ public abstract class Ast {
                     Objects.equals(variable, ((Global) obj).variable);
         }
 
+        @Override
+        int structuralHash() {
+            return Objects.hash("Ast.Global", name, typeName, mutable, value);
+        }
+
+        @Override
+        void children(List<Ast> children) {
+            value.ifPresent(children::add);
+        }
+
         @Override
         public String toString() {
             return "Ast.Global{" +
@@ -123,7 +223,11 @@ public abstract class Ast {
         private final List<String> parameters;
         private final List<String> parameterTypeNames;
         private final Optional<String> returnTypeName;
-        private final List<Statement> statements;
+        //null until a lazy body is parsed by the body supplier
+        private volatile List<Statement> statements;
+        private Supplier<List<Statement>> body = null;
+        //hashes a lazy body without parsing it, or null to hash the statements
+        private IntSupplier bodyHash = null;
         private Environment.Function function = null;
         
         public Function(String name, List<String> parameters, List<Statement> statements) {
@@ -142,6 +246,27 @@ public abstract class Ast {
             this.statements = statements;
         }
 
+        /**
+         * Creates a function whose statements are only produced by {@code body}
+         * the first time {@link #getStatements()} is called, as for functions
+         * parsed with lazy bodies.
+         */
+        public Function(String name, List<String> parameters, List<String> parameterTypeNames, Optional<String> returnTypeName, Supplier<List<Statement>> body) {
+            this(name, parameters, parameterTypeNames, returnTypeName, (List<Statement>) null);
+            this.body = body;
+        }
+
+        /**
+         * Creates a function with a lazy body as above, which is hashed by
+         * {@code bodyHash} in place of its statements, as for a body parsed
+         * from tokens that are hashed instead. This keeps hashing from calling
+         * {@code body}, and the hash is the same before and after it is called.
+         */
+        public Function(String name, List<String> parameters, List<String> parameterTypeNames, Optional<String> returnTypeName, Supplier<List<Statement>> body, IntSupplier bodyHash) {
+            this(name, parameters, parameterTypeNames, returnTypeName, body);
+            this.bodyHash = bodyHash;
+        }
+
         public String getName() {
             return name;
         }
@@ -159,6 +284,16 @@ public abstract class Ast {
         }
 
         public List<Statement> getStatements() {
+            List<Statement> statements = this.statements;
+            if (statements == null) {
+                synchronized (this) {
+                    if (this.statements == null) {
+                        this.statements = body.get();
+                        body = null;
+                    }
+                    statements = this.statements;
+                }
+            }
             return statements;
         }
 
@@ -174,15 +309,56 @@ public abstract class Ast {
         }
 
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
-            return obj instanceof Ast.Function &&
+            return obj == this || obj instanceof Ast.Function &&
+                    hashCode() == obj.hashCode() &&
                     name.equals(((Ast.Function) obj).name) &&
                     parameters.equals(((Ast.Function) obj).parameters) &&
                     parameterTypeNames.equals(((Ast.Function) obj).parameterTypeNames) &&
                     returnTypeName.equals(((Ast.Function) obj).returnTypeName) &&
-                    statements.equals(((Ast.Function) obj).statements) &&
-                    Objects.equals(function, ((Ast.Function) obj).function);
+                    Objects.equals(function, ((Ast.Function) obj).function) &&
+                    statementsEqual((Ast.Function) obj);
+        }
+
+        /**
+         * Compares statements, parsing lazy bodies only once everything else
+         * is equal. A body that fails to parse has no statements, so it is
+         * only equal to itself.
+         */
+        private boolean statementsEqual(Ast.Function other) {
+            if (statements == null && body == other.body) {
+                return true;
+            }
+            try {
+                return getStatements().equals(other.getStatements());
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Covers the statements, or instead the {@code bodyHash} of a lazy body
+         * that has one, so hashing never parses it. Such a function is then
+         * only equal to functions with an equal {@code bodyHash}, and not to
+         * one built from the same statements.
+         */
+        @Override
+        int structuralHash() {
+            Object statements = bodyHash != null ? bodyHash.getAsInt() : getStatements();
+            return Objects.hash("Ast.Function", name, parameters, parameterTypeNames, returnTypeName, statements);
+        }
+
+        @Override
+        void children(List<Ast> children) {
+            if (bodyHash == null) {
+                children.addAll(getStatements());
+            }
         }
 
 
@@ -193,7 +369,7 @@ public abstract class Ast {
                     ", parameters=" + parameters +
                     ", parameterTypeNames=" + parameterTypeNames +
                     ", returnTypeName='" + returnTypeName + '\'' +
-                    ", statements=" + statements +
+                    ", statements=" + getStatements() +
                     ", function=" + function +
                     '}';
         }
@@ -214,12 +390,28 @@ public abstract class Ast {
                 return expression;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Ast.Statement.Expression &&
+                return obj == this || obj instanceof Ast.Statement.Expression &&
+                        hashCode() == obj.hashCode() &&
                         expression.equals(((Ast.Statement.Expression) obj).expression);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Expression", expression);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(expression);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.Expression{" +
@@ -270,15 +462,31 @@ public abstract class Ast {
             }
             
             
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Declaration &&
+                return obj == this || obj instanceof Declaration &&
+                        hashCode() == obj.hashCode() &&
                         name.equals(((Declaration) obj).name) &&
                         typeName.equals(((Declaration) obj).typeName) &&
                         value.equals(((Declaration) obj).value) &&
                         Objects.equals(variable, ((Declaration) obj).variable);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Declaration", name, typeName, value);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                value.ifPresent(children::add);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.Declaration{" +
@@ -309,13 +517,30 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Assignment &&
+                return obj == this || obj instanceof Assignment &&
+                        hashCode() == obj.hashCode() &&
                         receiver.equals(((Assignment) obj).receiver) &&
                         value.equals(((Assignment) obj).value);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Assignment", receiver, value);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(receiver);
+                children.add(value);
+            }
+
             @Override
             public final String toString() {
                 return "Ast.Statement.Assignment{" +
@@ -351,14 +576,32 @@ public abstract class Ast {
                 return elseStatements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof If &&
+                return obj == this || obj instanceof If &&
+                        hashCode() == obj.hashCode() &&
                         condition.equals(((If) obj).condition) &&
                         thenStatements.equals(((If) obj).thenStatements) &&
                         elseStatements.equals(((If) obj).elseStatements);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.If", condition, thenStatements, elseStatements);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(condition);
+                children.addAll(thenStatements);
+                children.addAll(elseStatements);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.If{" +
@@ -386,13 +629,30 @@ public abstract class Ast {
 
             public List<Ast.Statement.Case> getCases() { return cases; }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Switch &&
+                return obj == this || obj instanceof Switch &&
+                        hashCode() == obj.hashCode() &&
                         condition.equals(((Switch) obj).condition) &&
                         cases.equals(((Switch) obj).cases);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Switch", condition, cases);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(condition);
+                children.addAll(cases);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.Switch{" +
@@ -421,13 +681,30 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Case &&
+                return obj == this || obj instanceof Case &&
+                        hashCode() == obj.hashCode() &&
                         value.equals(((Case) obj).value) &&
                         statements.equals(((Case) obj).statements);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Case", value, statements);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                value.ifPresent(children::add);
+                children.addAll(statements);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.Case{" +
@@ -456,13 +733,30 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof While &&
+                return obj == this || obj instanceof While &&
+                        hashCode() == obj.hashCode() &&
                         condition.equals(((While) obj).condition) &&
                         statements.equals(((While) obj).statements);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.While", condition, statements);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(condition);
+                children.addAll(statements);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.While{" +
@@ -485,12 +779,28 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Return &&
+                return obj == this || obj instanceof Return &&
+                        hashCode() == obj.hashCode() &&
                         value.equals(((Return) obj).value);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Statement.Return", value);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(value);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Statement.Return{" +
@@ -533,13 +843,28 @@ public abstract class Ast {
 
 
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Literal &&
+                return obj == this || obj instanceof Literal &&
+                        hashCode() == obj.hashCode() &&
                         Objects.equals(literal, ((Literal) obj).literal) &&
                         Objects.equals(type, ((Literal) obj).type);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.Literal", literal);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expression.Literal{" +
@@ -576,13 +901,29 @@ public abstract class Ast {
             }
 
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Group &&
+                return obj == this || obj instanceof Group &&
+                        hashCode() == obj.hashCode() &&
                         expression.equals(((Group) obj).expression) &&
                         Objects.equals(type, ((Group) obj).type);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.Group", expression);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(expression);
+            }
+
 
             @Override
             public String toString() {
@@ -631,15 +972,32 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Binary &&
+                return obj == this || obj instanceof Binary &&
+                        hashCode() == obj.hashCode() &&
                         operator.equals(((Binary) obj).operator) &&
                         left.equals(((Binary) obj).left) &&
                         right.equals(((Binary) obj).right) &&
                         Objects.equals(type, ((Binary) obj).type);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.Binary", operator, left, right);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.add(left);
+                children.add(right);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expression.Binary{" +
@@ -688,14 +1046,30 @@ public abstract class Ast {
                 return getVariable().getType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Access &&
+                return obj == this || obj instanceof Access &&
+                        hashCode() == obj.hashCode() &&
                         offset.equals(((Access) obj).offset) &&
                         name.equals(((Access) obj).name) &&
                         Objects.equals(variable, ((Access) obj).variable);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.Access", offset, name);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                offset.ifPresent(children::add);
+            }
+
 
             @Override
             public String toString() {
@@ -743,14 +1117,30 @@ public abstract class Ast {
                 return getFunction().getReturnType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Ast.Expression.Function &&
+                return obj == this || obj instanceof Ast.Expression.Function &&
+                        hashCode() == obj.hashCode() &&
                         name.equals(((Ast.Expression.Function) obj).name) &&
                         arguments.equals(((Ast.Expression.Function) obj).arguments) &&
                         Objects.equals(function, ((Ast.Expression.Function) obj).function);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.Function", name, arguments);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.addAll(arguments);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expression.Function{" +
@@ -788,13 +1178,29 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
-                return obj instanceof Ast.Expression.PlcList &&
+                return obj == this || obj instanceof Ast.Expression.PlcList &&
+                        hashCode() == obj.hashCode() &&
                         values.equals(((Ast.Expression.PlcList) obj).values) &&
                         Objects.equals(type, ((Ast.Expression.PlcList) obj).type);
             }
 
+            @Override
+            int structuralHash() {
+                return Objects.hash("Ast.Expression.PlcList", values);
+            }
+
+            @Override
+            void children(List<Ast> children) {
+                children.addAll(values);
+            }
+
             @Override
             public String toString() {
                 return "Ast.Expression.PlcList{" +
@@ -810,43 +1216,7 @@ public abstract class Ast {
     public interface Visitor<T> {
 
         default T visit(Ast ast) {
-            if (ast instanceof Ast.Source) {
-                return visit((Ast.Source) ast);
-            } else if (ast instanceof Ast.Global) {
-                return visit((Ast.Global) ast);
-            } else if (ast instanceof Ast.Function) {
-                return visit((Ast.Function) ast);
-            } else if (ast instanceof Ast.Statement.Expression) {
-                return visit((Ast.Statement.Expression) ast);
-            } else if (ast instanceof Ast.Statement.Declaration) {
-                return visit((Ast.Statement.Declaration) ast);
-            } else if (ast instanceof Ast.Statement.Assignment) {
-                return visit((Ast.Statement.Assignment) ast);
-            } else if (ast instanceof Ast.Statement.If) {
-                return visit((Ast.Statement.If) ast);
-            } else if (ast instanceof Ast.Statement.Switch) {
-                return visit((Ast.Statement.Switch) ast);
-            } else if (ast instanceof Ast.Statement.Case) {
-                return visit((Ast.Statement.Case) ast);
-            } else if (ast instanceof Ast.Statement.While) {
-                return visit((Ast.Statement.While) ast);
-            } else if (ast instanceof Ast.Statement.Return) {
-                return visit((Ast.Statement.Return) ast);
-            } else if (ast instanceof Ast.Expression.Literal) {
-                return visit((Ast.Expression.Literal) ast);
-            } else if (ast instanceof Ast.Expression.Group) {
-                return visit((Ast.Expression.Group) ast);
-            } else if (ast instanceof Ast.Expression.Binary) {
-                return visit((Ast.Expression.Binary) ast);
-            } else if (ast instanceof Ast.Expression.Access) {
-                return visit((Ast.Expression.Access) ast);
-            } else if (ast instanceof Ast.Expression.Function) {
-                return visit((Ast.Expression.Function) ast);
-            } else if (ast instanceof Ast.Expression.PlcList) {
-                return visit((Ast.Expression.PlcList) ast);
-            } else {
-                throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
-            }
+            return ast.accept(this);
         }
 
         T visit(Ast.Source ast);
@@ -0,0 +1,395 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads an {@link Ast.Source} written by {@link AstWriter}. The constant pool
+ * is decoded once up front, so every name and literal value in the tree is a
+ * shared instance and nodes are built straight from the varint fields. The
+ * data can come from an array or any {@link ByteBuffer}, such as a file mapped
+ * into memory.
+ *
+ * Malformed input, such as truncated or corrupted data, throws an {@link
+ * IllegalArgumentException}. Counts and lengths are checked against the bytes
+ * left before anything is allocated for them.
+ *
+ * Nodes are read with a stack of frames on the heap rather than recursion, so
+ * any tree the writer can write, however deeply nested, can be read back.
+ */
+public final class AstReader {
+
+    //field kinds, in the order AstWriter writes each node's fields
+    private static final int NAME = 0;
+    private static final int OPTIONAL_NAME = 1;
+    private static final int NAMES = 2;
+    private static final int FLAG = 3;
+    private static final int VALUE = 4;
+    private static final int EXPRESSION = 5;
+    private static final int OPTIONAL_EXPRESSION = 6;
+    private static final int EXPRESSIONS = 7;
+    private static final int STATEMENTS = 8;
+    private static final int GLOBALS = 9;
+    private static final int FUNCTIONS = 10;
+    private static final int CASES = 11;
+
+    //field kinds of each node, by tag
+    private static final int[][] LAYOUTS = new int[AstWriter.LIST + 1][];
+
+    static {
+        LAYOUTS[AstWriter.SOURCE] = new int[] {GLOBALS, FUNCTIONS};
+        LAYOUTS[AstWriter.GLOBAL] = new int[] {NAME, NAME, FLAG, OPTIONAL_EXPRESSION};
+        LAYOUTS[AstWriter.FUNCTION] = new int[] {NAME, NAMES, NAMES, OPTIONAL_NAME, STATEMENTS};
+        LAYOUTS[AstWriter.STATEMENT_EXPRESSION] = new int[] {EXPRESSION};
+        LAYOUTS[AstWriter.DECLARATION] = new int[] {NAME, OPTIONAL_NAME, OPTIONAL_EXPRESSION};
+        LAYOUTS[AstWriter.ASSIGNMENT] = new int[] {EXPRESSION, EXPRESSION};
+        LAYOUTS[AstWriter.IF] = new int[] {EXPRESSION, STATEMENTS, STATEMENTS};
+        LAYOUTS[AstWriter.SWITCH] = new int[] {EXPRESSION, CASES};
+        LAYOUTS[AstWriter.CASE] = new int[] {OPTIONAL_EXPRESSION, STATEMENTS};
+        LAYOUTS[AstWriter.WHILE] = new int[] {EXPRESSION, STATEMENTS};
+        LAYOUTS[AstWriter.RETURN] = new int[] {EXPRESSION};
+        LAYOUTS[AstWriter.LITERAL] = new int[] {VALUE};
+        LAYOUTS[AstWriter.GROUP] = new int[] {EXPRESSION};
+        LAYOUTS[AstWriter.BINARY] = new int[] {NAME, EXPRESSION, EXPRESSION};
+        LAYOUTS[AstWriter.ACCESS] = new int[] {OPTIONAL_EXPRESSION, NAME};
+        LAYOUTS[AstWriter.FUNCTION_CALL] = new int[] {NAME, EXPRESSIONS};
+        LAYOUTS[AstWriter.LIST] = new int[] {EXPRESSIONS};
+    }
+
+    private final ByteBuffer bytes;
+    private int index = 0;
+    private Object[] constants;
+
+    private AstReader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Decodes a tree encoded by {@link AstWriter#write(Ast.Source)}.
+     */
+    public static Ast.Source read(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a tree encoded by {@link AstWriter#write(Ast.Source)} from the
+     * remaining bytes of {@code bytes}, without changing its position.
+     */
+    public static Ast.Source read(ByteBuffer bytes) {
+        AstReader reader = new AstReader(bytes.slice());
+        try {
+            return reader.readSource();
+        } catch (IndexOutOfBoundsException | ClassCastException | BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Malformed AST data at byte " + reader.index + ".", e);
+        }
+    }
+
+    private Ast.Source readSource() {
+        int magic = bytes.getInt(0);
+        index = 4;
+        if (magic != AstWriter.MAGIC) {
+            throw new IllegalArgumentException("Not AST data.");
+        }
+        int version = readVarint();
+        if (version != AstWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported AST data version " + version + ".");
+        }
+        constants = new Object[readCount()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = readConstant();
+        }
+        expect(AstWriter.SOURCE);
+        Ast.Source source = (Ast.Source) readTree();
+        if (index != bytes.limit()) {
+            throw new IllegalArgumentException("Trailing bytes after AST data.");
+        }
+        return source;
+    }
+
+    /**
+     * Reads the tree after the {@code SOURCE} tag. Each node being read is a
+     * {@link Frame} on a stack; a frame reads fields until it reaches a child,
+     * pushes a frame for it, and takes the child once that frame is built.
+     * Frames are reused as the stack shrinks and grows again.
+     */
+    private Ast readTree() {
+        List<Frame> stack = new ArrayList<>();
+        stack.add(new Frame());
+        stack.get(0).reset(AstWriter.SOURCE);
+        int depth = 1;
+        while (true) {
+            Frame frame = stack.get(depth - 1);
+            int tag = readFields(frame);
+            if (tag >= 0) {
+                if (depth == stack.size()) {
+                    stack.add(new Frame());
+                }
+                stack.get(depth++).reset(tag);
+                continue;
+            }
+            Ast ast = build(frame);
+            if (--depth == 0) {
+                return ast;
+            }
+            stack.get(depth - 1).add(ast);
+        }
+    }
+
+    /**
+     * Reads the fields of {@code frame} up to its next child and returns the
+     * child's tag, or returns -1 once every field has been read.
+     */
+    private int readFields(Frame frame) {
+        while (frame.field < frame.layout.length) {
+            int kind = frame.layout[frame.field];
+            if (kind < EXPRESSION) {
+                frame.fields[frame.field++] = readField(kind);
+                continue;
+            }
+            if (!frame.started) {
+                frame.started = true;
+                if (kind == EXPRESSION) {
+                    frame.remaining = 1;
+                } else if (kind == OPTIONAL_EXPRESSION) {
+                    frame.remaining = readVarint() != 0 ? 1 : 0;
+                    frame.fields[frame.field] = Optional.empty();
+                } else {
+                    frame.remaining = readCount();
+                    frame.fields[frame.field] = new ArrayList<Ast>(frame.remaining);
+                }
+            }
+            if (frame.remaining > 0) {
+                frame.remaining--;
+                int tag = readVarint();
+                if (!allows(kind, tag)) {
+                    throw new IllegalArgumentException("Invalid tag " + tag + " at byte " + (index - 1) + ".");
+                }
+                return tag;
+            }
+            frame.started = false;
+            frame.field++;
+        }
+        return -1;
+    }
+
+    private Object readField(int kind) {
+        switch (kind) {
+            case NAME:
+                return readString();
+            case OPTIONAL_NAME:
+                return readOptionalString();
+            case NAMES:
+                return readStrings();
+            case FLAG:
+                return readVarint() != 0;
+            default:
+                return constants[readVarint()];
+        }
+    }
+
+    /**
+     * Returns whether a node with {@code tag} may appear in a field of
+     * {@code kind}.
+     */
+    private static boolean allows(int kind, int tag) {
+        switch (kind) {
+            case STATEMENTS:
+                return tag >= AstWriter.STATEMENT_EXPRESSION && tag <= AstWriter.RETURN;
+            case GLOBALS:
+                return tag == AstWriter.GLOBAL;
+            case FUNCTIONS:
+                return tag == AstWriter.FUNCTION;
+            case CASES:
+                return tag == AstWriter.CASE;
+            default:
+                return tag >= AstWriter.LITERAL && tag <= AstWriter.LIST;
+        }
+    }
+
+    /**
+     * Builds the node for a frame whose fields have all been read. The casts
+     * are safe since {@link #allows(int, int)} checked every child's tag.
+     */
+    @SuppressWarnings("unchecked")
+    private static Ast build(Frame frame) {
+        Object[] fields = frame.fields;
+        switch (frame.tag) {
+            case AstWriter.SOURCE:
+                return new Ast.Source((List<Ast.Global>) fields[0], (List<Ast.Function>) fields[1]);
+            case AstWriter.GLOBAL:
+                return new Ast.Global((String) fields[0], (String) fields[1], (Boolean) fields[2], (Optional<Ast.Expression>) fields[3]);
+            case AstWriter.FUNCTION:
+                return new Ast.Function((String) fields[0], (List<String>) fields[1], (List<String>) fields[2], (Optional<String>) fields[3], (List<Ast.Statement>) fields[4]);
+            case AstWriter.STATEMENT_EXPRESSION:
+                return new Ast.Statement.Expression((Ast.Expression) fields[0]);
+            case AstWriter.DECLARATION:
+                return new Ast.Statement.Declaration((String) fields[0], (Optional<String>) fields[1], (Optional<Ast.Expression>) fields[2]);
+            case AstWriter.ASSIGNMENT:
+                return new Ast.Statement.Assignment((Ast.Expression) fields[0], (Ast.Expression) fields[1]);
+            case AstWriter.IF:
+                return new Ast.Statement.If((Ast.Expression) fields[0], (List<Ast.Statement>) fields[1], (List<Ast.Statement>) fields[2]);
+            case AstWriter.SWITCH:
+                return new Ast.Statement.Switch((Ast.Expression) fields[0], (List<Ast.Statement.Case>) fields[1]);
+            case AstWriter.CASE:
+                return new Ast.Statement.Case((Optional<Ast.Expression>) fields[0], (List<Ast.Statement>) fields[1]);
+            case AstWriter.WHILE:
+                return new Ast.Statement.While((Ast.Expression) fields[0], (List<Ast.Statement>) fields[1]);
+            case AstWriter.RETURN:
+                return new Ast.Statement.Return((Ast.Expression) fields[0]);
+            case AstWriter.LITERAL:
+                return new Ast.Expression.Literal(fields[0]);
+            case AstWriter.GROUP:
+                return new Ast.Expression.Group((Ast.Expression) fields[0]);
+            case AstWriter.BINARY:
+                return new Ast.Expression.Binary((String) fields[0], (Ast.Expression) fields[1], (Ast.Expression) fields[2]);
+            case AstWriter.ACCESS:
+                return new Ast.Expression.Access((Optional<Ast.Expression>) fields[0], (String) fields[1]);
+            case AstWriter.FUNCTION_CALL:
+                return new Ast.Expression.Function((String) fields[0], (List<Ast.Expression>) fields[1]);
+            default:
+                return new Ast.Expression.PlcList((List<Ast.Expression>) fields[0]);
+        }
+    }
+
+    private String readString() {
+        return string(readVarint());
+    }
+
+    private List<String> readStrings() {
+        int count = readCount();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString());
+        }
+        return strings;
+    }
+
+    private Optional<String> readOptionalString() {
+        int constant = readVarint();
+        return constant != 0 ? Optional.of(string(constant - 1)) : Optional.empty();
+    }
+
+    /**
+     * Returns the pool constant at {@code constant}, which must be a name
+     * rather than a literal value.
+     */
+    private String string(int constant) {
+        Object value = constants[constant];
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Constant " + constant + " is not a string.");
+        }
+        return (String) value;
+    }
+
+    private Object readConstant() {
+        int tag = readVarint();
+        switch (tag) {
+            case AstWriter.NIL:
+                return null;
+            case AstWriter.TRUE:
+                return Boolean.TRUE;
+            case AstWriter.FALSE:
+                return Boolean.FALSE;
+            case AstWriter.STRING:
+                return new String(readBytes(), StandardCharsets.UTF_8);
+            case AstWriter.CHARACTER:
+                return (char) readVarint();
+            case AstWriter.INTEGER:
+                return new BigInteger(readBytes());
+            case AstWriter.DECIMAL: {
+                int zigzag = readVarint();
+                int scale = zigzag >>> 1 ^ -(zigzag & 1);
+                return new BigDecimal(new BigInteger(readBytes()), scale);
+            }
+            default:
+                throw new IllegalArgumentException("Invalid constant tag " + tag + " at byte " + (index - 1) + ".");
+        }
+    }
+
+    private byte[] readBytes() {
+        byte[] value = new byte[readCount()];
+        ByteBuffer view = bytes.duplicate();
+        view.position(index);
+        view.get(value);
+        index += value.length;
+        return value;
+    }
+
+    private void expect(int tag) {
+        int actual = readVarint();
+        if (actual != tag) {
+            throw new IllegalArgumentException("Expected tag " + tag + " but was " + actual + " at byte " + (index - 1) + ".");
+        }
+    }
+
+    /**
+     * Reads a count or length of items that each take at least one byte, so a
+     * value larger than the bytes left can only come from corrupt data.
+     */
+    private int readCount() {
+        int start = index;
+        int count = readVarint();
+        if (count < 0 || count > bytes.limit() - index) {
+            throw new IllegalArgumentException("Invalid count " + count + " at byte " + start + ".");
+        }
+        return count;
+    }
+
+    private int readVarint() {
+        int start = index;
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = bytes.get(index++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than 5 bytes at byte " + start + ".");
+    }
+
+    /**
+     * A node whose fields are being read.
+     */
+    private static final class Frame {
+
+        private int tag;
+        private int[] layout;
+        private final Object[] fields = new Object[5];
+        private int field;
+        //whether the children of the current field have started
+        private boolean started;
+        private int remaining;
+
+        private void reset(int tag) {
+            this.tag = tag;
+            this.layout = LAYOUTS[tag];
+            this.field = 0;
+            this.started = false;
+            this.remaining = 0;
+        }
+
+        /**
+         * Stores a child of the current field.
+         */
+        @SuppressWarnings("unchecked")
+        private void add(Ast ast) {
+            int kind = layout[field];
+            if (kind == EXPRESSION) {
+                fields[field] = ast;
+            } else if (kind == OPTIONAL_EXPRESSION) {
+                fields[field] = Optional.of(ast);
+            } else {
+                ((List<Ast>) fields[field]).add(ast);
+            }
+        }
+
+    }
+
+}
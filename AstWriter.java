@@ -0,0 +1,387 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Writes an {@link Ast.Source} in a compact binary format, which {@link
+ * AstReader} turns back into the same tree without lexing or parsing.
+ *
+ * The format is a header, a constant pool and then the tree:
+ *
+ * - The header is {@link #MAGIC} followed by {@link #VERSION}.
+ * - The pool holds every name, operator and literal value once, each as a tag
+ *   and its bytes. The tree refers to them by index.
+ * - Each node is its tag followed by its fields in constructor order. Counts,
+ *   pool indices and flags are unsigned varints, so small trees stay small.
+ *
+ * Only the parsed tree is written; types and other annotations added by the
+ * {@link Analyzer} are not.
+ *
+ * Each visit writes a node's own fields and queues its children rather than
+ * visiting them, and {@link #write(Ast.Source)} works through the queued
+ * items on a stack on the heap, so deeply nested trees cannot overflow the
+ * call stack.
+ */
+public final class AstWriter implements Ast.Visitor<Void> {
+
+    static final int MAGIC = 0x504C4341; //"PLCA"
+    static final int VERSION = 1;
+
+    //node tags
+    static final int SOURCE = 0;
+    static final int GLOBAL = 1;
+    static final int FUNCTION = 2;
+    static final int STATEMENT_EXPRESSION = 3;
+    static final int DECLARATION = 4;
+    static final int ASSIGNMENT = 5;
+    static final int IF = 6;
+    static final int SWITCH = 7;
+    static final int CASE = 8;
+    static final int WHILE = 9;
+    static final int RETURN = 10;
+    static final int LITERAL = 11;
+    static final int GROUP = 12;
+    static final int BINARY = 13;
+    static final int ACCESS = 14;
+    static final int FUNCTION_CALL = 15;
+    static final int LIST = 16;
+
+    //constant pool tags
+    static final int NIL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int STRING = 3;
+    static final int CHARACTER = 4;
+    static final int INTEGER = 5;
+    static final int DECIMAL = 6;
+
+    private final Map<Object, Integer> constants = new HashMap<>();
+    private final Bytes pool = new Bytes();
+    private final Bytes tree = new Bytes();
+    //nodes to visit and varints to write, with the next item last
+    private final List<Object> stack = new ArrayList<>();
+    //items queued by the current visit, in order
+    private final List<Object> pending = new ArrayList<>();
+
+    private AstWriter() {}
+
+    /**
+     * Encodes {@code ast} in the binary format.
+     */
+    public static byte[] write(Ast.Source ast) {
+        AstWriter writer = new AstWriter();
+        writer.stack.add(ast);
+        while (!writer.stack.isEmpty()) {
+            Object item = writer.stack.remove(writer.stack.size() - 1);
+            if (item instanceof Integer) {
+                writer.tree.writeVarint((Integer) item);
+            } else {
+                writer.visit((Ast) item);
+                for (int i = writer.pending.size() - 1; i >= 0; i--) {
+                    writer.stack.add(writer.pending.get(i));
+                }
+                writer.pending.clear();
+            }
+        }
+        Bytes res = new Bytes();
+        res.writeInt(MAGIC);
+        res.writeVarint(VERSION);
+        res.writeVarint(writer.constants.size());
+        res.write(writer.pool);
+        res.write(writer.tree);
+        return res.toByteArray();
+    }
+
+    @Override
+    public Void visit(Ast.Source ast) {
+        varint(SOURCE);
+        varint(ast.getGlobals().size());
+        for (Ast.Global global : ast.getGlobals()) {
+            child(global);
+        }
+        varint(ast.getFunctions().size());
+        for (Ast.Function function : ast.getFunctions()) {
+            child(function);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Global ast) {
+        varint(GLOBAL);
+        constant(ast.getName());
+        constant(ast.getTypeName());
+        varint(ast.getMutable() ? 1 : 0);
+        optional(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Function ast) {
+        varint(FUNCTION);
+        constant(ast.getName());
+        constants(ast.getParameters());
+        constants(ast.getParameterTypeNames());
+        optionalConstant(ast.getReturnTypeName());
+        list(ast.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Expression ast) {
+        varint(STATEMENT_EXPRESSION);
+        child(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Declaration ast) {
+        varint(DECLARATION);
+        constant(ast.getName());
+        optionalConstant(ast.getTypeName());
+        optional(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Assignment ast) {
+        varint(ASSIGNMENT);
+        child(ast.getReceiver());
+        child(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.If ast) {
+        varint(IF);
+        child(ast.getCondition());
+        list(ast.getThenStatements());
+        list(ast.getElseStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Switch ast) {
+        varint(SWITCH);
+        child(ast.getCondition());
+        list(ast.getCases());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Case ast) {
+        varint(CASE);
+        optional(ast.getValue());
+        list(ast.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.While ast) {
+        varint(WHILE);
+        child(ast.getCondition());
+        list(ast.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Return ast) {
+        varint(RETURN);
+        child(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Literal ast) {
+        varint(LITERAL);
+        constant(ast.getLiteral());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Group ast) {
+        varint(GROUP);
+        child(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Binary ast) {
+        varint(BINARY);
+        constant(ast.getOperator());
+        child(ast.getLeft());
+        child(ast.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Access ast) {
+        varint(ACCESS);
+        optional(ast.getOffset());
+        constant(ast.getName());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Function ast) {
+        varint(FUNCTION_CALL);
+        constant(ast.getName());
+        list(ast.getArguments());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.PlcList ast) {
+        varint(LIST);
+        list(ast.getValues());
+        return null;
+    }
+
+    /**
+     * Writes a varint, or queues it if it follows a queued child.
+     */
+    private void varint(int value) {
+        if (pending.isEmpty()) {
+            tree.writeVarint(value);
+        } else {
+            pending.add(value);
+        }
+    }
+
+    /**
+     * Queues a child node, to be visited once this visit returns.
+     */
+    private void child(Ast ast) {
+        pending.add(ast);
+    }
+
+    private void list(List<? extends Ast> asts) {
+        varint(asts.size());
+        for (Ast ast : asts) {
+            child(ast);
+        }
+    }
+
+    private void optional(Optional<? extends Ast> ast) {
+        varint(ast.isPresent() ? 1 : 0);
+        ast.ifPresent(this::child);
+    }
+
+    private void constants(List<String> values) {
+        varint(values.size());
+        for (String value : values) {
+            constant(value);
+        }
+    }
+
+    /**
+     * Writes an optional constant as its pool index plus one, or 0 if empty.
+     */
+    private void optionalConstant(Optional<String> value) {
+        varint(value.isPresent() ? index(value.get()) + 1 : 0);
+    }
+
+    private void constant(Object value) {
+        varint(index(value));
+    }
+
+    /**
+     * Returns the pool index of {@code value}, adding it to the pool first if
+     * needed.
+     */
+    private int index(Object value) {
+        Integer index = constants.get(value);
+        if (index != null) {
+            return index;
+        }
+        index = constants.size();
+        constants.put(value, index);
+        if (value == null) {
+            pool.writeVarint(NIL);
+        } else if (value instanceof Boolean) {
+            pool.writeVarint((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof String) {
+            pool.writeVarint(STRING);
+            pool.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Character) {
+            pool.writeVarint(CHARACTER);
+            pool.writeVarint((Character) value);
+        } else if (value instanceof BigInteger) {
+            pool.writeVarint(INTEGER);
+            pool.writeBytes(((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            pool.writeVarint(DECIMAL);
+            //zigzag, as the scale may be negative
+            int scale = ((BigDecimal) value).scale();
+            pool.writeVarint(scale << 1 ^ scale >> 31);
+            pool.writeBytes(((BigDecimal) value).unscaledValue().toByteArray());
+        } else {
+            throw new IllegalArgumentException("Unsupported literal type: " + value.getClass().getName() + ".");
+        }
+        return index;
+    }
+
+    /**
+     * A growable byte array with varint writing.
+     */
+    private static final class Bytes {
+
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        private void write(Bytes other) {
+            if (size + other.size > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + other.size));
+            }
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        private void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Writes an unsigned varint, 7 bits per byte with the high bit set on
+         * every byte but the last.
+         */
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void writeBytes(byte[] value) {
+            writeVarint(value.length);
+            for (byte b : value) {
+                write(b);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package plc.project;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A content-addressed cache of compiled sources, keyed by a SHA-256 hash of
+ * the source text and the {@link #VERSION} of the toolchain.
+ *
+ * Lookups try an in-memory LRU of recently used trees first, then a file in
+ * the cache directory written by {@link AstWriter} and mapped back into memory
+ * for {@link AstReader}, and only then lex and parse the source. The disk
+ * layer only stores the parsed tree: analysis results are {@link Environment}
+ * objects bound to a {@link Scope}, so analyzed trees are only kept in memory.
+ *
+ * Cached trees are shared between callers and should be treated as read-only.
+ * The {@link Analyzer} annotates a separate copy of the parsed tree, so trees
+ * returned by {@link #parse(String)} never change. The disk layer is best
+ * effort; unreadable or unwritable files are treated as misses rather than
+ * errors, and files that cannot be decoded are deleted.
+ */
+public final class CompileCache {
+
+    /**
+     * The version of the trees the {@link Lexer} and {@link Parser} give. It
+     * has to be bumped by hand with any change to either of them that gives a
+     * different tree for some source, since nothing else would keep files
+     * cached before the change from being used.
+     */
+    private static final int TREE_VERSION = 1;
+
+    /**
+     * The toolchain version included in every key, made of {@link
+     * #TREE_VERSION} and the {@link AstWriter} format version.
+     */
+    public static final String VERSION = TREE_VERSION + "." + AstWriter.VERSION;
+
+    private final Path directory;
+    private final Map<String, Entry> memory;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache storing files in {@code directory} and keeping up to
+     * {@code capacity} trees in memory.
+     */
+    public CompileCache(Path directory, int capacity) throws IOException {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative.");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+
+        };
+    }
+
+    /**
+     * Returns the parsed tree of {@code source}.
+     */
+    public Ast.Source parse(String source) throws ParseException {
+        return entry(source).ast;
+    }
+
+    /**
+     * Returns a tree of {@code source} that the {@link Analyzer} has been run
+     * over. This is a copy of the tree returned by {@link #parse(String)}, and
+     * is only analyzed once while it is in memory.
+     */
+    public Ast.Source analyze(String source) throws ParseException {
+        Entry entry = entry(source);
+        synchronized (entry) {
+            if (entry.analyzed == null) {
+                Ast.Source analyzed = AstReader.read(AstWriter.write(entry.ast));
+                new Analyzer(null).visit(analyzed);
+                entry.analyzed = analyzed;
+            }
+            return entry.analyzed;
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Entry entry(String source) {
+        String key = key(source);
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                memoryHits.incrementAndGet();
+                return entry;
+            }
+        }
+        Path file = directory.resolve(key + ".ast");
+        Ast.Source cached = readFile(file);
+        Ast.Source ast;
+        if (cached != null) {
+            diskHits.incrementAndGet();
+            ast = cached;
+        } else {
+            misses.incrementAndGet();
+            ast = new Parser(new Lexer(source, Lexer.Mode.TABLE).lexBuffer()).parseSource();
+            writeFile(file, AstWriter.write(ast));
+        }
+        synchronized (memory) {
+            //another thread may have loaded the same source in the meantime
+            Entry entry = memory.get(key);
+            if (entry == null) {
+                entry = new Entry(ast);
+                memory.put(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static Ast.Source readFile(Path file) {
+        MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            return AstReader.read(bytes);
+        } catch (RuntimeException e) {
+            //truncated or corrupt, so remove it rather than fail on it again
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    /**
+     * Writes through a temporary file and a rename, so other processes sharing
+     * the directory never see a partially written file.
+     */
+    private void writeFile(Path file, byte[] bytes) {
+        try {
+            Path temp = Files.createTempFile(directory, "plc", ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static String key(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); //required on every platform
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    private static final class Entry {
+
+        private final Ast.Source ast;
+        //a copy of ast once analyzed
+        private Ast.Source analyzed = null;
+
+        private Entry(Ast.Source ast) {
+            this.ast = ast;
+        }
+
+    }
+
+}
@@ -0,0 +1,530 @@
+package plc.project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A flat, index-based representation of an {@link Ast.Source}. Instead of one
+ * object per node with {@code List} and {@code Optional} fields, every node is
+ * an index into parallel {@code int} arrays holding its {@link Kind}, first
+ * child, next sibling and payload. Names, operators and literal values are
+ * stored once in a constant pool.
+ *
+ * The payload depends on the kind:
+ *
+ * - {@link Kind#GLOBAL}: an offset into the data array holding the name,
+ *   type name and mutability.
+ * - {@link Kind#FUNCTION}: an offset into the data array holding the name,
+ *   return type name (plus one, or 0 if absent), parameter count, parameter
+ *   names and parameter type names.
+ * - {@link Kind#DECLARATION}: an offset into the data array holding the name
+ *   and type name (plus one, or 0 if absent).
+ * - {@link Kind#CASE}: 1 if the first child is the case value, otherwise 0.
+ * - {@link Kind#LITERAL}, {@link Kind#BINARY}, {@link Kind#ACCESS} and
+ *   {@link Kind#FUNCTION_CALL}: the constant index of the literal value,
+ *   operator or name.
+ * - Otherwise unused.
+ *
+ * Children are in constructor order. Optional children are simply left out,
+ * and the then and else statements of an {@link Kind#IF} are each wrapped in
+ * a {@link Kind#BLOCK}. The root is always node 0.
+ *
+ * Existing {@link Ast.Visitor}s can run over a flat tree through {@link
+ * #accept(Ast.Visitor)}, which creates {@link Ast} objects as they are
+ * visited. These are new objects each time, so annotations set by a visitor
+ * are not kept in the flat tree.
+ */
+public final class FlatAst {
+
+    public enum Kind {
+        SOURCE, GLOBAL, FUNCTION, EXPRESSION_STATEMENT, DECLARATION, ASSIGNMENT,
+        IF, SWITCH, CASE, WHILE, RETURN, LITERAL, GROUP, BINARY, ACCESS,
+        FUNCTION_CALL, LIST, BLOCK
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final int[] kinds;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] payloads;
+    private final int[] data;
+    private final Object[] constants;
+    private final int size;
+
+    private FlatAst(Builder builder) {
+        this.size = builder.size;
+        this.kinds = Arrays.copyOf(builder.kinds, size);
+        this.firstChildren = Arrays.copyOf(builder.firstChildren, size);
+        this.nextSiblings = Arrays.copyOf(builder.nextSiblings, size);
+        this.payloads = Arrays.copyOf(builder.payloads, size);
+        this.data = Arrays.copyOf(builder.data, builder.dataSize);
+        this.constants = builder.constants.toArray();
+    }
+
+    /**
+     * Flattens an existing tree.
+     */
+    public static FlatAst of(Ast.Source ast) {
+        Builder builder = new Builder();
+        for (Ast.Global global : ast.getGlobals()) {
+            builder.add(global);
+        }
+        for (Ast.Function function : ast.getFunctions()) {
+            builder.add(function);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Kind getKind(int node) {
+        return KINDS[kinds[check(node)]];
+    }
+
+    /**
+     * Returns the first child of {@code node}, or -1 if it has none.
+     */
+    public int getFirstChild(int node) {
+        return firstChildren[check(node)];
+    }
+
+    /**
+     * Returns the next sibling of {@code node}, or -1 if it is the last child.
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[check(node)];
+    }
+
+    public int getPayload(int node) {
+        return payloads[check(node)];
+    }
+
+    public int getData(int offset) {
+        return data[offset];
+    }
+
+    public Object getConstant(int index) {
+        return constants[index];
+    }
+
+    /**
+     * Visits the tree with {@code visitor}. Function bodies are only created
+     * when the visitor first calls {@link Ast.Function#getStatements()}.
+     */
+    public <T> T accept(Ast.Visitor<T> visitor) {
+        return visitor.visit(toAst());
+    }
+
+    /**
+     * Creates the {@link Ast.Source} for this tree. Function bodies are only
+     * created when {@link Ast.Function#getStatements()} is first called, or
+     * the function is first hashed.
+     */
+    public Ast.Source toAst() {
+        List<Ast.Global> globals = new ArrayList<>();
+        List<Ast.Function> functions = new ArrayList<>();
+        for (int child = firstChildren[0]; child != -1; child = nextSiblings[child]) {
+            if (kinds[child] == Kind.GLOBAL.ordinal()) {
+                globals.add(global(child));
+            } else {
+                functions.add(function(child));
+            }
+        }
+        return new Ast.Source(globals, functions);
+    }
+
+    private Ast.Global global(int node) {
+        int offset = payloads[node];
+        Optional<Ast.Expression> value = firstChildren[node] == -1 ? Optional.empty() : Optional.of(expression(firstChildren[node]));
+        return new Ast.Global((String) constants[data[offset]], (String) constants[data[offset + 1]], data[offset + 2] != 0, value);
+    }
+
+    private Ast.Function function(int node) {
+        int offset = payloads[node];
+        int count = data[offset + 2];
+        List<String> parameters = new ArrayList<>(count);
+        List<String> parameterTypeNames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parameters.add((String) constants[data[offset + 3 + i]]);
+            parameterTypeNames.add((String) constants[data[offset + 3 + count + i]]);
+        }
+        return new Ast.Function((String) constants[data[offset]], parameters, parameterTypeNames, optionalConstant(data[offset + 1]), () -> statements(firstChildren[node]));
+    }
+
+    private Ast.Statement statement(int node) {
+        return (Ast.Statement) create(node);
+    }
+
+    private Ast.Expression expression(int node) {
+        return (Ast.Expression) create(node);
+    }
+
+    /**
+     * Creates the {@link Ast} for {@code root}, or the statements of a {@link
+     * Kind#BLOCK}. Each node is first expanded into its children on a stack on
+     * the heap, and created once they are, so converting a deeply nested tree
+     * cannot overflow the call stack. An expanded node is kept on the stack as
+     * {@code ~node}, and created nodes are kept on {@code values} until their
+     * parent is created.
+     */
+    private Object create(int root) {
+        int[] stack = new int[16];
+        int top = 0;
+        List<Object> values = new ArrayList<>();
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            if (node >= 0) {
+                int count = childCount(node);
+                if (top + count + 1 > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + count + 1));
+                }
+                stack[top++] = ~node;
+                //pushed in reverse, so they are created in order
+                top += count;
+                int i = top;
+                for (int child = firstChildren[node]; child != -1; child = nextSiblings[child]) {
+                    stack[--i] = child;
+                }
+            } else {
+                node = ~node;
+                List<Object> children = values.subList(values.size() - childCount(node), values.size());
+                Object value = create(node, children);
+                children.clear();
+                values.add(value);
+            }
+        }
+        return values.get(0);
+    }
+
+    /**
+     * Creates the {@link Ast} for {@code node} from its created {@code
+     * children}.
+     */
+    private Object create(int node, List<Object> children) {
+        switch (KINDS[kinds[node]]) {
+            case BLOCK:
+                return list(children, 0);
+            case EXPRESSION_STATEMENT:
+                return new Ast.Statement.Expression((Ast.Expression) children.get(0));
+            case DECLARATION: {
+                int offset = payloads[node];
+                Optional<Ast.Expression> value = children.isEmpty() ? Optional.empty() : Optional.of((Ast.Expression) children.get(0));
+                return new Ast.Statement.Declaration((String) constants[data[offset]], optionalConstant(data[offset + 1]), value);
+            }
+            case ASSIGNMENT:
+                return new Ast.Statement.Assignment((Ast.Expression) children.get(0), (Ast.Expression) children.get(1));
+            case IF:
+                return new Ast.Statement.If((Ast.Expression) children.get(0), list(children.get(1)), list(children.get(2)));
+            case SWITCH:
+                return new Ast.Statement.Switch((Ast.Expression) children.get(0), list(children, 1));
+            case CASE:
+                if (payloads[node] != 0) {
+                    return new Ast.Statement.Case(Optional.of((Ast.Expression) children.get(0)), list(children, 1));
+                }
+                return new Ast.Statement.Case(Optional.empty(), list(children, 0));
+            case WHILE:
+                return new Ast.Statement.While((Ast.Expression) children.get(0), list(children, 1));
+            case RETURN:
+                return new Ast.Statement.Return((Ast.Expression) children.get(0));
+            case LITERAL:
+                return new Ast.Expression.Literal(constants[payloads[node]]);
+            case GROUP:
+                return new Ast.Expression.Group((Ast.Expression) children.get(0));
+            case BINARY:
+                return new Ast.Expression.Binary((String) constants[payloads[node]], (Ast.Expression) children.get(0), (Ast.Expression) children.get(1));
+            case ACCESS: {
+                Optional<Ast.Expression> offset = children.isEmpty() ? Optional.empty() : Optional.of((Ast.Expression) children.get(0));
+                return new Ast.Expression.Access(offset, (String) constants[payloads[node]]);
+            }
+            case FUNCTION_CALL:
+                return new Ast.Expression.Function((String) constants[payloads[node]], list(children, 0));
+            case LIST:
+                return new Ast.Expression.PlcList(list(children, 0));
+            default:
+                throw new AssertionError(KINDS[kinds[node]]);
+        }
+    }
+
+    private int childCount(int node) {
+        int count = 0;
+        for (int child = firstChildren[node]; child != -1; child = nextSiblings[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the created children from {@code from} on into a list of the
+     * type the parent's constructor takes.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(List<Object> children, int from) {
+        return new ArrayList<>((List<T>) (List<?>) children.subList(from, children.size()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(Object block) {
+        return (List<T>) block;
+    }
+
+    /**
+     * Creates the statements starting at {@code node} and its next siblings.
+     */
+    private List<Ast.Statement> statements(int node) {
+        List<Ast.Statement> statements = new ArrayList<>();
+        for (; node != -1; node = nextSiblings[node]) {
+            statements.add(statement(node));
+        }
+        return statements;
+    }
+
+    private Optional<String> optionalConstant(int index) {
+        return index == 0 ? Optional.empty() : Optional.of((String) constants[index - 1]);
+    }
+
+    private int check(int node) {
+        if (node < 0 || node >= size) {
+            throw new IndexOutOfBoundsException("Index " + node + " out of bounds for length " + size);
+        }
+        return node;
+    }
+
+    /**
+     * Appends top-level declarations to a flat tree one at a time, so the
+     * {@link Parser} can flatten each declaration as soon as it is parsed.
+     */
+    public static final class Builder {
+
+        private int[] kinds = new int[256];
+        private int[] firstChildren = new int[256];
+        private int[] nextSiblings = new int[256];
+        private int[] payloads = new int[256];
+        private int size = 0;
+        private int[] data = new int[64];
+        private int dataSize = 0;
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> indices = new HashMap<>();
+        //the last top-level declaration, to link the next one after
+        private int last = -1;
+        //nodes whose children are still to be appended, and their Ast objects
+        private int[] pendingNodes = new int[16];
+        private final List<Object> pending = new ArrayList<>();
+        private final List<Object> children = new ArrayList<>();
+
+        public Builder() {
+            node(Kind.SOURCE, 0);
+        }
+
+        /**
+         * Appends a top-level {@link Ast.Global} or {@link Ast.Function}.
+         */
+        public void add(Ast declaration) {
+            int node;
+            if (declaration instanceof Ast.Global) {
+                Ast.Global ast = (Ast.Global) declaration;
+                int offset = data(constant(ast.getName()), constant(ast.getTypeName()), ast.getMutable() ? 1 : 0);
+                node = node(Kind.GLOBAL, offset);
+            } else {
+                Ast.Function ast = (Ast.Function) declaration;
+                int count = ast.getParameters().size();
+                int offset = data(constant(ast.getName()), optionalConstant(ast.getReturnTypeName()), count);
+                for (String parameter : ast.getParameters()) {
+                    data(constant(parameter));
+                }
+                for (String parameterTypeName : ast.getParameterTypeNames()) {
+                    data(constant(parameterTypeName));
+                }
+                node = node(Kind.FUNCTION, offset);
+            }
+            tree(node, declaration);
+            if (last == -1) {
+                firstChildren[0] = node;
+            } else {
+                nextSiblings[last] = node;
+            }
+            last = node;
+        }
+
+        public FlatAst build() {
+            return new FlatAst(this);
+        }
+
+        /**
+         * Appends the subtree of {@code ast} below its existing {@code root}.
+         * Each node's children are appended together once it is taken off a
+         * stack on the heap, so a deeply nested tree cannot overflow the call
+         * stack. The block of statements of an {@code IF} is kept on the stack
+         * as its {@code List}, for a {@link Kind#BLOCK} node.
+         */
+        private void tree(int root, Object ast) {
+            int top = 0;
+            //left over if an unsupported node failed the last tree
+            pending.clear();
+            pendingNodes[top++] = root;
+            pending.add(ast);
+            while (top > 0) {
+                int parent = pendingNodes[--top];
+                children.clear();
+                children(pending.remove(pending.size() - 1), children);
+                if (top + children.size() > pendingNodes.length) {
+                    pendingNodes = Arrays.copyOf(pendingNodes, Math.max(pendingNodes.length * 2, top + children.size()));
+                }
+                int previous = -1;
+                for (Object child : children) {
+                    int node = node(child);
+                    if (previous == -1) {
+                        firstChildren[parent] = node;
+                    } else {
+                        nextSiblings[previous] = node;
+                    }
+                    previous = node;
+                    pendingNodes[top++] = node;
+                    pending.add(child);
+                }
+            }
+        }
+
+        /**
+         * Adds the children of {@code ast} in constructor order.
+         */
+        private static void children(Object ast, List<Object> children) {
+            if (ast instanceof List) {
+                children.addAll((List<?>) ast);
+            } else if (ast instanceof Ast.Global) {
+                ((Ast.Global) ast).getValue().ifPresent(children::add);
+            } else if (ast instanceof Ast.Function) {
+                children.addAll(((Ast.Function) ast).getStatements());
+            } else if (ast instanceof Ast.Statement.Expression) {
+                children.add(((Ast.Statement.Expression) ast).getExpression());
+            } else if (ast instanceof Ast.Statement.Declaration) {
+                ((Ast.Statement.Declaration) ast).getValue().ifPresent(children::add);
+            } else if (ast instanceof Ast.Statement.Assignment) {
+                children.add(((Ast.Statement.Assignment) ast).getReceiver());
+                children.add(((Ast.Statement.Assignment) ast).getValue());
+            } else if (ast instanceof Ast.Statement.If) {
+                Ast.Statement.If statement = (Ast.Statement.If) ast;
+                children.add(statement.getCondition());
+                children.add(statement.getThenStatements());
+                children.add(statement.getElseStatements());
+            } else if (ast instanceof Ast.Statement.Switch) {
+                children.add(((Ast.Statement.Switch) ast).getCondition());
+                children.addAll(((Ast.Statement.Switch) ast).getCases());
+            } else if (ast instanceof Ast.Statement.Case) {
+                ((Ast.Statement.Case) ast).getValue().ifPresent(children::add);
+                children.addAll(((Ast.Statement.Case) ast).getStatements());
+            } else if (ast instanceof Ast.Statement.While) {
+                children.add(((Ast.Statement.While) ast).getCondition());
+                children.addAll(((Ast.Statement.While) ast).getStatements());
+            } else if (ast instanceof Ast.Statement.Return) {
+                children.add(((Ast.Statement.Return) ast).getValue());
+            } else if (ast instanceof Ast.Expression.Group) {
+                children.add(((Ast.Expression.Group) ast).getExpression());
+            } else if (ast instanceof Ast.Expression.Binary) {
+                children.add(((Ast.Expression.Binary) ast).getLeft());
+                children.add(((Ast.Expression.Binary) ast).getRight());
+            } else if (ast instanceof Ast.Expression.Access) {
+                ((Ast.Expression.Access) ast).getOffset().ifPresent(children::add);
+            } else if (ast instanceof Ast.Expression.Function) {
+                children.addAll(((Ast.Expression.Function) ast).getArguments());
+            } else if (ast instanceof Ast.Expression.PlcList) {
+                children.addAll(((Ast.Expression.PlcList) ast).getValues());
+            }
+        }
+
+        /**
+         * Appends the node for a statement, expression or block, without its
+         * children.
+         */
+        private int node(Object ast) {
+            if (ast instanceof List) {
+                return node(Kind.BLOCK, 0);
+            } else if (ast instanceof Ast.Statement.Expression) {
+                return node(Kind.EXPRESSION_STATEMENT, 0);
+            } else if (ast instanceof Ast.Statement.Declaration) {
+                Ast.Statement.Declaration declaration = (Ast.Statement.Declaration) ast;
+                return node(Kind.DECLARATION, data(constant(declaration.getName()), optionalConstant(declaration.getTypeName())));
+            } else if (ast instanceof Ast.Statement.Assignment) {
+                return node(Kind.ASSIGNMENT, 0);
+            } else if (ast instanceof Ast.Statement.If) {
+                return node(Kind.IF, 0);
+            } else if (ast instanceof Ast.Statement.Switch) {
+                return node(Kind.SWITCH, 0);
+            } else if (ast instanceof Ast.Statement.Case) {
+                return node(Kind.CASE, ((Ast.Statement.Case) ast).getValue().isPresent() ? 1 : 0);
+            } else if (ast instanceof Ast.Statement.While) {
+                return node(Kind.WHILE, 0);
+            } else if (ast instanceof Ast.Statement.Return) {
+                return node(Kind.RETURN, 0);
+            } else if (ast instanceof Ast.Statement) {
+                throw new IllegalArgumentException("Unsupported statement: " + ast.getClass().getName() + ".");
+            } else if (ast instanceof Ast.Expression.Literal) {
+                return node(Kind.LITERAL, constant(((Ast.Expression.Literal) ast).getLiteral()));
+            } else if (ast instanceof Ast.Expression.Group) {
+                return node(Kind.GROUP, 0);
+            } else if (ast instanceof Ast.Expression.Binary) {
+                return node(Kind.BINARY, constant(((Ast.Expression.Binary) ast).getOperator()));
+            } else if (ast instanceof Ast.Expression.Access) {
+                return node(Kind.ACCESS, constant(((Ast.Expression.Access) ast).getName()));
+            } else if (ast instanceof Ast.Expression.Function) {
+                return node(Kind.FUNCTION_CALL, constant(((Ast.Expression.Function) ast).getName()));
+            } else if (ast instanceof Ast.Expression.PlcList) {
+                return node(Kind.LIST, 0);
+            } else {
+                throw new IllegalArgumentException("Unsupported expression: " + ast.getClass().getName() + ".");
+            }
+        }
+
+        private int node(Kind kind, int payload) {
+            if (size == kinds.length) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                firstChildren = Arrays.copyOf(firstChildren, capacity);
+                nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+                payloads = Arrays.copyOf(payloads, capacity);
+            }
+            kinds[size] = kind.ordinal();
+            firstChildren[size] = -1;
+            nextSiblings[size] = -1;
+            payloads[size] = payload;
+            return size++;
+        }
+
+        /**
+         * Appends {@code values} to the data array, returning the offset of the
+         * first one.
+         */
+        private int data(int... values) {
+            if (dataSize + values.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + values.length));
+            }
+            System.arraycopy(values, 0, data, dataSize, values.length);
+            int offset = dataSize;
+            dataSize += values.length;
+            return offset;
+        }
+
+        private int optionalConstant(Optional<String> value) {
+            return value.isPresent() ? constant(value.get()) + 1 : 0;
+        }
+
+        private int constant(Object value) {
+            Integer index = indices.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                indices.put(value, index);
+            }
+            return index;
+        }
+
+    }
+
+}
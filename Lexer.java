@@ -1,6 +1,19 @@
 package plc.project;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 //import regex
 //import java.util.regex.Pattern;
 //import java.util.regex.Matcher;
@@ -16,27 +29,325 @@ import java.util.ArrayList;
  * invalid.
  *
  * The {@link #peek(String...)} and {@link #match(String...)} functions are *
- helpers you need to use, they will make the implementation a lot easier. */
+ helpers you need to use, they will make the implementation a lot easier.
+ *
+ * Constructing the lexer with {@link Mode#TABLE} swaps the regex based
+ * peek/match rules for lookups into a precomputed character class table. Both
+ * modes implement the same token rules and produce the same tokens. */
 public final class Lexer {
+    /**
+     * Selects how characters are classified while lexing. {@link #REGEX} runs
+     * every check through {@link #peek(String...)}, while {@link #TABLE} uses
+     * the {@link #CLASSES} table and never allocates per character.
+     */
+    public enum Mode {
+        REGEX,
+        TABLE
+    }
+    //character classes, used as bit flags in CLASSES
+    private static final int WHITESPACE = 1;       //[\b\n\r\t ]
+    private static final int DIGIT = 2;            //[0-9]
+    private static final int IDENTIFIER_START = 4; //[A-Za-z@]
+    private static final int IDENTIFIER_PART = 8;  //[A-Za-z0-9_-]
+    private static final int ESCAPE = 16;          //[bnrt"'\\]
+    private static final int RUN_END = 32;         //[\b\n\t ], makes a lone - an operator
+    private static final byte[] CLASSES = new byte[128];
+    //bytes of 1s and of high bits, for classifying 8 bytes at a time
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH = 0x8080808080808080L;
+    //smallest chunk of input worth lexing on its own thread
+    private static final int MIN_CHUNK = 1 << 16;
+    static {
+        for (char c : "\b\n\r\t ".toCharArray())
+            CLASSES[c] |= WHITESPACE;
+        for (char c : "\b\n\t ".toCharArray())
+            CLASSES[c] |= RUN_END;
+        for (char c = '0'; c <= '9'; c++)
+            CLASSES[c] |= DIGIT | IDENTIFIER_PART;
+        for (char c = 'A'; c <= 'Z'; c++) {
+            CLASSES[c] |= IDENTIFIER_START | IDENTIFIER_PART;
+            CLASSES[c + 'a' - 'A'] |= IDENTIFIER_START | IDENTIFIER_PART;
+        }
+        CLASSES['@'] |= IDENTIFIER_START;
+        CLASSES['_'] |= IDENTIFIER_PART;
+        CLASSES['-'] |= IDENTIFIER_PART;
+        for (char c : "bnrt\"'\\".toCharArray())
+            CLASSES[c] |= ESCAPE;
+    }
     private final CharStream chars;
+    private final Mode mode;
+    private boolean recovery = false;
+    private final List<ParseException> errors = new ArrayList<>();
     public Lexer(String input) {
+        this(input, Mode.REGEX);
+    }
+    public Lexer(String input, Mode mode) {
         chars = new CharStream(input);
+        this.mode = mode;
+    }
+    /**
+     * Lexes UTF-8 encoded input in {@link Mode#TABLE} without decoding it to
+     * a String first. All token rules only inspect ASCII characters, so the
+     * lexer scans the bytes directly and only decodes the literal of each
+     * token it emits. Token and error indices are still counted in chars, the
+     * same as for the decoded String.
+     */
+    public Lexer(ByteBuffer input) {
+        chars = new CharStream(new Utf8Input(input, input.position(), input.remaining()));
+        this.mode = Mode.TABLE;
+    }
+    public Lexer(byte[] input) {
+        this(ByteBuffer.wrap(input));
+    }
+    /**
+     * Lexes the UTF-8 file at {@code path} without reading it onto the heap.
+     * The file is memory-mapped and scanned as in {@link #Lexer(ByteBuffer)},
+     * so lexing starts immediately and only token literals are copied.
+     */
+    public Lexer(Path path) throws IOException {
+        this(map(path));
+    }
+    private Lexer(CharStream chars, Mode mode) {
+        this.chars = chars;
+        this.mode = mode;
+    }
+    /**
+     * Sets whether lexing recovers from errors. Instead of throwing the first
+     * {@link ParseException}, the lexer then records it in {@link #getErrors()}
+     * and resumes at the next line, since no token but a character literal
+     * spans a newline. This applies to {@link #lex()}, {@link #lexParallel()},
+     * {@link #lexBuffer()} and {@link #tokens()}.
+     */
+    public void setRecovery(boolean recovery) {
+        this.recovery = recovery;
+    }
+    /**
+     * Returns the errors recovered from so far, in input order.
+     */
+    public List<ParseException> getErrors() {
+        return errors;
+    }
+    /**
+     * Records {@code e} in recovery mode, skipping the rest of its line and
+     * dropping the partial token, and otherwise rethrows it.
+     */
+    private void recover(ParseException e) {
+        if (!recovery)
+            throw e;
+        errors.add(e);
+        while (chars.has(0) && chars.get(0) != '\n')
+            chars.index++;
+        chars.skip();
+    }
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
     }
     /**
      * Repeatedly lexes the input using {@link #lexToken()}, also skipping over
      * whitespace where appropriate.
      */
     public List<Token> lex() {
+        if (mode == Mode.TABLE)
+            return lexTable();
         List<Token> res = new ArrayList<>();
         while (chars.index != chars.input.length()) {
             //skip white space
             if (peek("[\b\n\r\t ]"))
                 lexEscape(); //DO NOT COUNT WHITESPACE
-            else
+            else try {
                 res.add(lexToken()); //we should always keep building to the same
+            } catch (ParseException e) {
+                recover(e);
+            }
+        }
+        return res;
+    }
+    /**
+     * Lexes the input in parallel on the common {@link ForkJoinPool}.
+     */
+    public List<Token> lexParallel() {
+        return lexParallel(ForkJoinPool.commonPool());
+    }
+    /**
+     * Lexes the input in parallel, returning the same tokens (or throwing the
+     * same first error) as {@link #lex()}.
+     *
+     * The input is split after newlines that are not preceded by a {@code '}.
+     * Whitespace is the only token rule that consumes a newline, apart from a
+     * character literal of a newline (which always follows a {@code '}), and
+     * strings, which fail at the newline anyway. Every chunk therefore starts
+     * where the sequential lexer would also start a fresh token, and token
+     * lookahead never reads past the newline ending a chunk.
+     */
+    public List<Token> lexParallel(ForkJoinPool pool) {
+        CharSequence input = chars.input;
+        int chunks = Math.min(input.length() / MIN_CHUNK, pool.getParallelism() * 4);
+        if (chunks < 2)
+            return lex();
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < chunks; i++) {
+            int split = Math.max((int) ((long) input.length() * i / chunks), bounds.get(bounds.size() - 1) + 1);
+            while (split < input.length() && (input.charAt(split - 1) != '\n' || input.charAt(split - 2) == '\''))
+                split++;
+            if (split < input.length())
+                bounds.add(split);
+        }
+        bounds.add(input.length());
+        //char offset of every chunk, which only differs from its start for UTF-8
+        int[] bases = new int[bounds.size()];
+        if (chars.utf8 != null) {
+            List<Callable<Integer>> counts = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                Utf8Input chunk = (Utf8Input) input.subSequence(bounds.get(i), bounds.get(i + 1));
+                counts.add(() -> chunk.charIndex(chunk.length()));
+            }
+            List<Future<Integer>> lengths = pool.invokeAll(counts);
+            for (int i = 0; i < lengths.size(); i++)
+                bases[i + 1] = bases[i] + join(lengths.get(i));
+        }
+        else {
+            for (int i = 0; i < bounds.size(); i++)
+                bases[i] = bounds.get(i);
+        }
+        List<Callable<List<Token>>> tasks = new ArrayList<>();
+        List<Lexer> lexers = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            CharStream chunk = new CharStream(input.subSequence(bounds.get(i), bounds.get(i + 1)), bases[i]);
+            Lexer lexer = new Lexer(chunk, mode);
+            lexer.recovery = recovery;
+            tasks.add(lexer::lex);
+            lexers.add(lexer);
+        }
+        List<Token> res = new ArrayList<>();
+        List<Future<List<Token>>> futures = pool.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            res.addAll(join(futures.get(i))); //first failing chunk holds the first error
+            errors.addAll(lexers.get(i).errors);
+        }
+        return res;
+    }
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * Returns the tokens of the input lazily, lexing each one only when it is
+     * requested. Unlike {@link #lex()} the whole list is never held at once,
+     * and lexing errors are thrown from {@code hasNext} as the stream reaches
+     * them.
+     */
+    public Iterator<Token> tokens() {
+        return new Iterator<Token>() {
+            //lexed by hasNext, as in recovery mode the rest of the input may
+            //hold no more tokens
+            private Token next = null;
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    //skip white space
+                    if (mode == Mode.TABLE)
+                        chars.skipWhile(WHITESPACE);
+                    else while (peek("[\b\n\r\t ]"))
+                        lexEscape();
+                    if (!chars.has(0))
+                        return false;
+                    try {
+                        next = mode == Mode.TABLE ? chars.emit(scanToken()) : lexToken();
+                    } catch (ParseException e) {
+                        recover(e);
+                    }
+                }
+                return true;
+            }
+            @Override
+            public Token next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Token token = next;
+                next = null;
+                return token;
+            }
+        };
+    }
+    /**
+     * Relexes this lexer's input after an edit, reusing the tokens of the
+     * previous version where possible. This lexer must be constructed over the
+     * edited source, {@code previous} must be the tokens of the source before
+     * the edit, and the edit replaced {@code removed} chars at {@code offset}
+     * with {@code inserted}.
+     *
+     * Tokens that end before the edit (plus the two chars of lookahead used by
+     * {@link #lexNumber()}) are kept. Lexing restarts after the last of them
+     * and stops as soon as a new token starts, past the edit, where an old
+     * token started; from there on the input is unchanged, so the remaining
+     * old tokens are reused with their indices shifted.
+     *
+     * Offsets are in chars, like token indices, for UTF-8 input too. There
+     * the restart point is translated to a byte index by counting the bytes
+     * before it, which is still much cheaper than lexing them.
+     */
+    public List<Token> relex(List<Token> previous, int offset, int removed, String inserted) {
+        int delta = inserted.length() - removed;
+        int editEnd = offset + inserted.length();
+        if (offset < 0 || removed < 0 || (chars.utf8 == null ? editEnd > chars.input.length() : chars.utf8.byteIndex(editEnd) < 0))
+            throw new IllegalArgumentException("Edit is outside of the input.");
+        //first token whose lexing could have looked at the edited text
+        int keep = search(previous, offset - 2, true);
+        List<Token> res = new ArrayList<>(previous.size() + 16);
+        res.addAll(previous.subList(0, keep));
+        int start = keep == 0 ? 0 : end(previous.get(keep - 1));
+        chars.index = chars.utf8 == null ? start : chars.utf8.byteIndex(start);
+        chars.length = 0;
+        int old = keep;
+        Iterator<Token> tokens = tokens();
+        while (tokens.hasNext()) {
+            Token token = tokens.next();
+            res.add(token);
+            if (token.getIndex() < editEnd)
+                continue;
+            //resynchronize once an old token started at the same place
+            int oldIndex = token.getIndex() - delta;
+            old = search(previous.subList(old, previous.size()), oldIndex, false) + old;
+            if (old < previous.size() && previous.get(old).getIndex() == oldIndex) {
+                for (Token rest : previous.subList(old + 1, previous.size())) {
+                    res.add(delta == 0 ? rest : new Token(rest.getType(), rest.getLiteral(), rest.getIndex() + delta, rest.getKind(), rest.getValue()));
+                }
+                break;
+            }
         }
         return res;
     }
+    /**
+     * Binary searches sorted tokens for the first one that ends (when
+     * {@code end} is true) or starts after {@code index}.
+     */
+    private static int search(List<Token> tokens, int index, boolean end) {
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Token token = tokens.get(mid);
+            if ((end ? end(token) : token.getIndex()) < index + (end ? 1 : 0))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    private static int end(Token token) {
+        return token.getIndex() + token.getLiteral().length();
+    }
     /**
      * This method determines the type of the next token, delegating to the
      * appropriate lex method. As such, it is best for this method to not change
@@ -66,38 +377,21 @@ public final class Lexer {
         return chars.emit(Token.Type.IDENTIFIER);
     }
     public Token lexNumber() {
-        // Check if number is after .
-        String test = chars.input.substring(chars.index);
-        //create new string to match
-        StringBuilder tempBuilder = new StringBuilder("");
-        for (int i = 0; i < test.length(); i++) {
-            Character c = test.charAt(i);
-            if ((c + "").matches("[\b\n\n\t ]")) {
-                break;
-            }
-            tempBuilder.append(c);
-        }
-        test = tempBuilder.toString();
-        if (test.contains(".")) {
-            int num = test.indexOf(".") + 1;
-            int num2 = test.length();
-            if (num2 > num) {
-                char temp = test.charAt((test.indexOf(".") + 1));
-                if (test.length() > test.indexOf(".") + 1 &&
-                        Character.isDigit(temp))
-                    return lexDecimal();
-            }
-        }
+        //bounded lookahead: skip the sign and integer digits, then a decimal
+        //needs a '.' followed by a digit
+        int offset = peek("-") ? 1 : 0;
+        while (peekAt(offset, "[0-9]"))
+            offset++;
+        if (peekAt(offset, "\\.") && peekAt(offset + 1, "[0-9]"))
+            return lexDecimal();
         // Check for negative sign
-        boolean negative = false;
         if (peek("-")) {
-            if (test.length() == 1) {
+            if (!chars.has(1) || peekAt(1, "[\b\n\t ]")) {
                 //hyphen case
                 match("-");
                 return chars.emit(Token.Type.OPERATOR);
             }
             match("-");
-            negative = true;
         }
         // Check for leading '0'
         if (peek("0")) {
@@ -108,11 +402,7 @@ public final class Lexer {
         while (peek("[0-9]")) {
             match("[0-9]");
         }
-        if (negative) {
-            return chars.emit(Token.Type.INTEGER);
-        } else {
-            return chars.emit(Token.Type.INTEGER);
-        }
+        return chars.emit(Token.Type.INTEGER);
     }
     public Token lexDecimal() {
         match("[0-9-]");
@@ -131,7 +421,7 @@ public final class Lexer {
         match("\'");
         if (peek("\'")) {
             //empty character
-            throw new ParseException("Empty character!", chars.index);
+            throw new ParseException("Empty character!", chars.position());
         }
         if (peek("[^\\\\]")) {
             //not escape character
@@ -144,7 +434,7 @@ public final class Lexer {
                 match("[bnrt\"\'\\\\]");
             }
             else {
-                throw new ParseException("Invalid escape!", chars.index);
+                throw new ParseException("Invalid escape!", chars.position());
             }
         }
         //check final quotation
@@ -154,7 +444,7 @@ public final class Lexer {
         }
         else {
             //unterminated string
-            throw new ParseException("Unterminated character!", chars.index);
+            throw new ParseException("Unterminated character!", chars.position());
         }
     }
     public Token lexString() {
@@ -164,7 +454,7 @@ public final class Lexer {
                 //if does not start with escape sequence
                 if (peek("[\n\r\t\b]")) {
                     //physical whitespace errors
-                    throw new ParseException("Wrong escape sequence for string!", chars.index);
+                    throw new ParseException("Wrong escape sequence for string!", chars.position());
                 }
                 match("[^\\\\]");
             }
@@ -178,7 +468,7 @@ public final class Lexer {
                 }
                 else {
                     //invalid escape
-                    throw new ParseException("Invalid escape!", chars.index);
+                    throw new ParseException("Invalid escape!", chars.position());
                 }
             }
         }
@@ -189,7 +479,7 @@ public final class Lexer {
         }
         else {
             //unterminated string
-            throw new ParseException("Unterminated string!", chars.index);
+            throw new ParseException("Unterminated string!", chars.position());
         }
     }
     public void lexEscape() {
@@ -210,6 +500,256 @@ public final class Lexer {
             match(".");
         return chars.emit(Token.Type.OPERATOR);
     }
+    /**
+     * Table driven version of {@link #lex()}. Each lexX method below has a
+     * scanX twin that follows the same rules (and throws the same errors) but
+     * classifies characters through {@link #CLASSES} instead of regexes.
+     */
+    private List<Token> lexTable() {
+        List<Token> res = new ArrayList<>();
+        while (chars.has(0)) {
+            if (peekClass(0, WHITESPACE))
+                chars.skipWhile(WHITESPACE);
+            else try {
+                res.add(chars.emit(scanToken()));
+            } catch (ParseException e) {
+                recover(e);
+            }
+        }
+        return res;
+    }
+    /**
+     * Lexes the input into a {@link TokenBuffer}, which records each token as
+     * a type, start offset and length over the input instead of a {@link
+     * Token} object. In {@link Mode#TABLE} no per-token objects are created.
+     */
+    public TokenBuffer lexBuffer() {
+        TokenBuffer res = new TokenBuffer(chars.input);
+        while (chars.has(0)) {
+            if (mode == Mode.TABLE && peekClass(0, WHITESPACE))
+                chars.skipWhile(WHITESPACE);
+            else if (mode == Mode.REGEX && peek("[\b\n\r\t ]"))
+                lexEscape();
+            else try {
+                if (mode == Mode.TABLE)
+                    chars.emit(scanToken(), res);
+                else {
+                    Token token = lexToken();
+                    res.add(token.getType(), token.getIndex(), token.getLiteral().length());
+                }
+            } catch (ParseException e) {
+                recover(e);
+            }
+        }
+        return res;
+    }
+    private Token.Type scanToken() {
+        char c = chars.get(0);
+        if (c == '"')
+            return scanString();
+        else if (c == '\'')
+            return scanCharacter();
+        else if (c == '-' || peekClass(0, DIGIT))
+            return scanNumber();
+        else if (peekClass(0, IDENTIFIER_START))
+            return scanIdentifier();
+        else
+            return scanOperator();
+    }
+    private Token.Type scanIdentifier() {
+        chars.advance();
+        chars.advanceWhile(IDENTIFIER_PART);
+        return Token.Type.IDENTIFIER;
+    }
+    private Token.Type scanNumber() {
+        int offset = peek(0, '-') ? 1 : 0;
+        while (peekClass(offset, DIGIT))
+            offset++;
+        if (peek(offset, '.') && peekClass(offset + 1, DIGIT))
+            return scanDecimal();
+        if (peek(0, '-')) {
+            if (!chars.has(1) || peekClass(1, RUN_END)) {
+                //hyphen case
+                chars.advance();
+                return Token.Type.OPERATOR;
+            }
+            chars.advance();
+        }
+        if (peek(0, '0')) {
+            chars.advance();
+            return Token.Type.INTEGER;
+        }
+        if (peekClass(0, DIGIT))
+            chars.advance(); //[1-9], 0 was handled above
+        while (peekClass(0, DIGIT))
+            chars.advance();
+        return Token.Type.INTEGER;
+    }
+    private Token.Type scanDecimal() {
+        chars.advance(); //[0-9-], checked by scanToken
+        while (peekClass(0, DIGIT))
+            chars.advance();
+        if (peek(0, '.'))
+            chars.advance();
+        while (peekClass(0, DIGIT))
+            chars.advance();
+        return Token.Type.DECIMAL;
+    }
+    private Token.Type scanCharacter() {
+        chars.advance();
+        chars.startValue();
+        if (peek(0, '\'')) {
+            //empty character
+            throw new ParseException("Empty character!", chars.position());
+        }
+        if (chars.has(0) && chars.get(0) != '\\') {
+            //not escape character
+            chars.append(chars.get(0));
+            chars.advanceChar();
+        }
+        else {
+            //escape character
+            if (chars.has(0))
+                chars.advance();
+            if (peekClass(0, ESCAPE)) {
+                chars.append(escape(chars.get(0)));
+                chars.advance();
+            }
+            else
+                throw new ParseException("Invalid escape!", chars.position());
+        }
+        //check final quotation
+        if (peek(0, '\'')) {
+            chars.advance();
+            return Token.Type.CHARACTER;
+        }
+        throw new ParseException("Unterminated character!", chars.position());
+    }
+    private Token.Type scanString() {
+        chars.advance();
+        chars.startValue();
+        while (chars.has(0) && chars.get(0) != '"') {
+            char c = chars.get(0);
+            if (c != '\\') {
+                if (c == '\n' || c == '\r' || c == '\t' || c == '\b') {
+                    //physical whitespace errors
+                    throw new ParseException("Wrong escape sequence for string!", chars.position());
+                }
+                chars.append(c);
+                chars.advance();
+            }
+            else {
+                chars.advance();
+                if (peekClass(0, ESCAPE)) {
+                    chars.append(escape(chars.get(0)));
+                    chars.advance();
+                }
+                else
+                    throw new ParseException("Invalid escape!", chars.position());
+            }
+        }
+        //check final quotation
+        if (peek(0, '"')) {
+            chars.advance();
+            return Token.Type.STRING;
+        }
+        throw new ParseException("Unterminated string!", chars.position());
+    }
+    private Token.Type scanOperator() {
+        //"|" is an empty regex alternation in lexOperator, so it never matches
+        //a character and || always lexes as two tokens there
+        char c = chars.get(0);
+        if (chars.has(1) && chars.get(1) == (c == '!' ? '=' : c)
+                && (c == '=' || c == '!' || c == '&'))
+            chars.advance();
+        chars.advanceChar();
+        return Token.Type.OPERATOR;
+    }
+    /**
+     * Returns the character an escape sequence stands for, given the
+     * character after the backslash (one of the {@link #ESCAPE} class).
+     */
+    private static char escape(char c) {
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                return c; //' " and \ stand for themselves
+        }
+    }
+    /**
+     * Decodes a string literal, removing the quotes and replacing escapes.
+     * A backslash that does not start an escape is kept as is.
+     */
+    static String decodeString(CharSequence literal) {
+        StringBuilder res = new StringBuilder(literal.length() - 2);
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            if (c == '\\' && i + 1 < literal.length() - 1 && isEscape(literal.charAt(i + 1)))
+                c = escape(literal.charAt(++i));
+            res.append(c);
+        }
+        return res.toString();
+    }
+    /**
+     * Decodes a character literal, returning {@code 'x'} if it is not a single
+     * character or escape.
+     */
+    static char decodeCharacter(CharSequence literal) {
+        if (literal.length() == 3)
+            return literal.charAt(1);
+        if (literal.length() == 4 && literal.charAt(1) == '\\' && isEscape(literal.charAt(2)))
+            return escape(literal.charAt(2));
+        return 'x';
+    }
+    /**
+     * Returns a word with the high bit set in each byte of {@code ascii} (which
+     * must have its high bits clear) that is in {@code [lo, hi]}. Neither sum
+     * can carry into the next byte, so every byte is tested independently.
+     */
+    private static long inRange(long ascii, char lo, char hi) {
+        return (ascii + ONES * (0x80 - lo)) & ~(ascii + ONES * (0x7F - hi)) & HIGH;
+    }
+    /**
+     * Classifies all 8 bytes of {@code word} at once, setting the high bit of
+     * each byte in the {@link #WHITESPACE} or {@link #IDENTIFIER_PART} class.
+     * Bytes outside of ASCII have no class, as in {@link #CLASSES}.
+     */
+    private static long classify(long word, int mask) {
+        long ascii = word & ~HIGH;
+        long res;
+        if (mask == WHITESPACE)
+            res = inRange(ascii, '\b', '\n') | inRange(ascii, '\r', '\r') | inRange(ascii, ' ', ' ');
+        else
+            res = inRange(ascii, '0', '9') | inRange(ascii, 'A', 'Z') | inRange(ascii, 'a', 'z')
+                    | inRange(ascii, '_', '_') | inRange(ascii, '-', '-');
+        return res & ~word;
+    }
+    private static boolean isEscape(char c) {
+        return c < 128 && (CLASSES[c] & ESCAPE) != 0;
+    }
+    /**
+     * Returns true if the character at the given offset is {@code c}.
+     */
+    private boolean peek(int offset, char c) {
+        return chars.has(offset) && chars.get(offset) == c;
+    }
+    /**
+     * Returns true if the character at the given offset belongs to any of the
+     * classes in {@code mask}. Characters outside of ASCII have no class.
+     */
+    private boolean peekClass(int offset, int mask) {
+        if (!chars.has(offset))
+            return false;
+        char c = chars.get(offset);
+        return c < CLASSES.length && (CLASSES[c] & mask) != 0;
+    }
     /**
      * Returns true if the next sequence of characters match the given patterns,
      * which should be a regex. For example, {@code peek("a", "b", "c")} would
@@ -224,6 +764,13 @@ public final class Lexer {
         }
         return true;
     }
+    /**
+     * Returns true if the single character at the given offset matches the
+     * regex pattern. Used for the bounded lookahead in {@link #lexNumber()}.
+     */
+    private boolean peekAt(int offset, String pattern) {
+        return chars.has(offset) && String.valueOf(chars.get(offset)).matches(pattern);
+    }
     /**
      * Returns true in the same way as {@link #peek(String...)}, but also
      * advances the character stream past all matched characters if peek returns
@@ -248,11 +795,24 @@ public final class Lexer {
      */
 
     public static final class CharStream {
-        private final String input;
+        private final CharSequence input;
+        private final Utf8Input utf8;
+        //char index of the start of the input, for chunks of a larger input
+        private final int base;
         private int index = 0;
         private int length = 0;
-        public CharStream(String input) {
+        //decoded value of the string or character literal being scanned
+        private final StringBuilder value = new StringBuilder();
+        private boolean decoding = false;
+        //set when the value holds raw UTF-8 bytes that still need decoding
+        private boolean raw = false;
+        public CharStream(CharSequence input) {
+            this(input, 0);
+        }
+        private CharStream(CharSequence input, int base) {
             this.input = input;
+            this.utf8 = input instanceof Utf8Input ? (Utf8Input) input : null;
+            this.base = base;
         }
         public boolean has(int offset) {
             return index + offset < input.length();
@@ -264,13 +824,211 @@ public final class Lexer {
             index++;
             length++;
         }
+        /**
+         * Advances past one whole character. For UTF-8 input this includes the
+         * continuation bytes of a multi-byte sequence.
+         */
+        public void advanceChar() {
+            advance();
+            if (utf8 != null) {
+                while (has(0) && (get(0) & 0xC0) == 0x80)
+                    advance();
+            }
+        }
+        /**
+         * Returns the current index in chars, which is what tokens and {@link
+         * ParseException}s report. This only differs from {@link #index} for
+         * UTF-8 input containing multi-byte characters.
+         */
+        public int position() {
+            return base + (utf8 == null ? index : utf8.charIndex(index));
+        }
         public void skip() {
             length = 0;
+            decoding = false;
+        }
+        /**
+         * Skips over a run of characters in the class {@code mask} without
+         * adding them to the current token, as for whitespace.
+         */
+        private void skipWhile(int mask) {
+            index = scan(index, mask);
+        }
+        /**
+         * Advances over a run of characters in the class {@code mask}, adding
+         * them to the current token.
+         */
+        private void advanceWhile(int mask) {
+            int end = scan(index, mask);
+            length += end - index;
+            index = end;
+        }
+        /**
+         * Returns the index of the first character at or after {@code index}
+         * that is not in the class {@code mask}. Only UTF-8 input is scanned a
+         * word at a time, see {@link Utf8Input#scan(int, int)}; String input
+         * has no bulk view of its chars and is checked one char at a time.
+         * {@link Mode#REGEX} never calls this.
+         */
+        private int scan(int index, int mask) {
+            if (utf8 != null)
+                return utf8.scan(index, mask);
+            int length = input.length();
+            while (index < length) {
+                char c = input.charAt(index);
+                if (c >= 128 || (CLASSES[c] & mask) == 0)
+                    break;
+                index++;
+            }
+            return index;
+        }
+        /**
+         * Starts decoding the value of a string or character literal, which
+         * the scanner builds with {@link #append(char)} as it goes so the
+         * parser does not have to rescan the literal.
+         */
+        private void startValue() {
+            value.setLength(0);
+            decoding = true;
+            raw = false;
+        }
+        private void append(char c) {
+            value.append(c);
+            raw |= utf8 != null && c >= 0x80;
         }
         public Token emit(Token.Type type) {
             int start = index - length;
+            Token.Kind kind = Token.Kind.of(input, start, length);
+            String literal = input.subSequence(start, index).toString();
+            Object decoded = null;
+            if (decoding && type == Token.Type.STRING)
+                decoded = raw ? decodeString(literal) : value.toString();
+            else if (decoding && type == Token.Type.CHARACTER)
+                decoded = raw ? decodeCharacter(literal) : value.charAt(0);
+            skip();
+            return new Token(type, literal, base + (utf8 == null ? start : utf8.charIndex(start)), kind, decoded);
+        }
+        /**
+         * Emits the current token into the buffer instead of creating a
+         * {@link Token}, which avoids copying the literal out of the input.
+         */
+        public void emit(Token.Type type, TokenBuffer buffer) {
+            int start = index - length;
+            buffer.add(type, start, length, base + (utf8 == null ? start : utf8.charIndex(start)));
             skip();
-            return new Token(type, input.substring(start, index), start);
+        }
+    }
+    /**
+     * A {@link CharSequence} view over UTF-8 bytes, used by the byte and file
+     * constructors. Each byte is one char: ASCII bytes read as themselves and
+     * the bytes of multi-byte sequences read as chars 0x80-0xFF, which have no
+     * character class. Slices share the bytes; only {@link #toString()}
+     * decodes them.
+     */
+    private static final class Utf8Input implements CharSequence {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        //last byte index translated by charIndex, and its char index
+        private int cursor = 0;
+        private int cursorChars = 0;
+        private final boolean bigEndian;
+        private Utf8Input(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        }
+        @Override
+        public int length() {
+            return length;
+        }
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Utf8Input(buffer, offset + start, end - start);
+        }
+        /**
+         * Returns the index of the first byte at or after {@code index} that is
+         * not in the class {@code mask}, which must be {@link #WHITESPACE} or
+         * {@link #IDENTIFIER_PART}. Whole words are classified with {@link
+         * #classify(long, int)} while 8 bytes remain, then the tail is checked
+         * byte by byte.
+         */
+        private int scan(int index, int mask) {
+            for (; index + 8 <= length; index += 8) {
+                long misses = ~classify(buffer.getLong(offset + index), mask) & HIGH;
+                if (misses != 0) {
+                    //the first byte in memory is the high byte when big endian
+                    int bit = bigEndian ? Long.numberOfLeadingZeros(misses) : Long.numberOfTrailingZeros(misses);
+                    return index + (bit >>> 3);
+                }
+            }
+            for (; index < length; index++) {
+                int b = buffer.get(offset + index) & 0xFF;
+                if (b >= 128 || (CLASSES[b] & mask) == 0)
+                    break;
+            }
+            return index;
+        }
+        /**
+         * Translates a byte index into a UTF-16 char index. The lexer asks for
+         * increasing indices, so this resumes from the last one instead of
+         * counting from the start. Words of 8 ASCII bytes are counted whole,
+         * otherwise every byte {@link #scan(int, int)} skips is read again here.
+         */
+        private int charIndex(int index) {
+            if (index < cursor) {
+                cursor = 0;
+                cursorChars = 0;
+            }
+            while (cursor < index) {
+                if (cursor + 8 <= index && (buffer.getLong(offset + cursor) & HIGH) == 0) {
+                    cursor += 8;
+                    cursorChars += 8;
+                    continue;
+                }
+                byte b = buffer.get(offset + cursor);
+                if ((b & 0xC0) != 0x80) {
+                    //lead bytes of 4 byte sequences are a surrogate pair
+                    cursorChars += (b & 0xF8) == 0xF0 ? 2 : 1;
+                }
+                cursor++;
+            }
+            return cursorChars;
+        }
+        /**
+         * Translates a UTF-16 char index into the index of the byte starting
+         * that char, or returns -1 if the input has fewer chars. This moves
+         * the same cursor as {@link #charIndex(int)}.
+         */
+        private int byteIndex(int index) {
+            if (index < cursorChars) {
+                cursor = 0;
+                cursorChars = 0;
+            }
+            while (cursor < length && (cursorChars < index || (buffer.get(offset + cursor) & 0xC0) == 0x80)) {
+                byte b = buffer.get(offset + cursor);
+                if ((b & 0xC0) != 0x80) {
+                    cursorChars += (b & 0xF8) == 0xF0 ? 2 : 1;
+                }
+                cursor++;
+            }
+            return cursorChars < index ? -1 : cursor;
+        }
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            for (byte b : bytes) {
+                if (b < 0) {
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return new String(bytes, StandardCharsets.ISO_8859_1);
         }
     }
 }
\ No newline at end of file
@@ -6,8 +6,13 @@ import java.util.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The parser takes the sequence of tokens emitted by the lexer and turns that
@@ -24,30 +29,629 @@ import java.util.stream.Stream;
  */
 public final class Parser {
 
+    /**
+     * Binary operator precedences, from logical (loosest) to multiplicative
+     * (tightest).
+     */
+    private static final Map<Token.Kind, Integer> PRECEDENCE = new EnumMap<>(Token.Kind.class);
+
+    static {
+        PRECEDENCE.put(Token.Kind.AND, 0);
+        //only reachable with hand built tokens, see Token.Kind
+        PRECEDENCE.put(Token.Kind.OR, 0);
+        PRECEDENCE.put(Token.Kind.LESS, 1);
+        PRECEDENCE.put(Token.Kind.GREATER, 1);
+        PRECEDENCE.put(Token.Kind.EQUAL, 1);
+        PRECEDENCE.put(Token.Kind.NOT_EQUAL, 1);
+        PRECEDENCE.put(Token.Kind.PLUS, 2);
+        PRECEDENCE.put(Token.Kind.MINUS, 2);
+        PRECEDENCE.put(Token.Kind.TIMES, 3);
+        PRECEDENCE.put(Token.Kind.DIVIDE, 3);
+        PRECEDENCE.put(Token.Kind.POWER, 3);
+    }
+
+    //fewest tokens worth parsing on their own thread
+    private static final int MIN_CHUNK = 1 << 12;
+
+    //deepest nesting findEnd scans before parsing a lazy body right away
+    private static final int MAX_SKIP_DEPTH = 256;
+
+    //integer literals from 0 to 255, shared by every parse
+    private static final BigInteger[] SMALL_INTEGERS = new BigInteger[256];
+
+    static {
+        for (int i = 0; i < SMALL_INTEGERS.length; i++) {
+            SMALL_INTEGERS[i] = BigInteger.valueOf(i);
+        }
+    }
+
     private final TokenStream tokens;
+    private boolean lazyBodies = false;
+    private boolean explicitStack = false;
+    private boolean recovery = false;
+    private final List<ParseException> errors = new ArrayList<>();
+    //operand and operator stacks of parseBinaryExpression, reused across calls
+    private final List<Ast.Expression> operands = new ArrayList<>();
+    private final List<Token.Kind> operators = new ArrayList<>();
+    //literal values already parsed, so repeated literals share one value
+    private final Map<String, BigInteger> integers = new HashMap<>();
+    private final Map<String, BigDecimal> decimals = new HashMap<>();
+    private final Map<Object, Object> values = new HashMap<>();
+    //nesting stacks of the explicit stack mode
+    private final List<ExpressionFrame> expressionFrames = new ArrayList<>();
+    private final List<BlockFrame> blockFrames = new ArrayList<>();
 
     public Parser(List<Token> tokens) {
-        this.tokens = new TokenStream(tokens);
+        this.tokens = new ListTokenStream(tokens);
+    }
+
+    /**
+     * Parses tokens pulled on demand, such as from {@link Lexer#tokens()}.
+     * Only a small window around the current token is kept in memory.
+     */
+    public Parser(Iterator<Token> tokens) {
+        this.tokens = new LazyTokenStream(tokens);
+    }
+
+    /**
+     * Parses directly from a {@link TokenBuffer}. Lookahead compares types and
+     * literals against the buffer, so {@link Token} objects are only created
+     * for error messages.
+     */
+    public Parser(TokenBuffer tokens) {
+        this.tokens = new BufferTokenStream(tokens);
+    }
+
+    private Parser(TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Sets whether function bodies are parsed lazily. A lazy {@link
+     * Ast.Function} only records where its body is, skipping ahead to the
+     * matching {@code END}, and parses the body on the first call to {@link
+     * Ast.Function#getStatements()}, such as when the function is first
+     * invoked.
+     *
+     * A body is only skipped if a scan of its tokens shows it will parse, and
+     * a body with an error is parsed right away instead, so the first error
+     * and its index are the same as without lazy bodies. The scan still reads
+     * every token, but builds nothing.
+     *
+     * This needs random access to the tokens, so enabling it on a parser over
+     * an {@link Iterator} throws an {@link IllegalStateException}.
+     */
+    public void setLazyBodies(boolean lazyBodies) {
+        if (lazyBodies && !(tokens instanceof RandomAccessTokenStream)) {
+            throw new IllegalStateException("Lazy bodies need random access to the tokens, which a parser over an Iterator does not have.");
+        }
+        this.lazyBodies = lazyBodies;
+    }
+
+    /**
+     * Sets whether nesting is tracked on an explicit stack instead of the Java
+     * call stack. Groups, function arguments and list offsets in expressions,
+     * and the blocks of {@code IF}, {@code WHILE} and {@code SWITCH}
+     * statements, then keep their partial state in frames on the heap, so
+     * machine-generated programs can nest as deeply as memory allows rather
+     * than overflowing the thread's stack.
+     */
+    public void setExplicitStack(boolean explicitStack) {
+        this.explicitStack = explicitStack;
+    }
+
+    /**
+     * Sets whether parsing recovers from errors. Instead of throwing the first
+     * {@link ParseException}, {@link #parseSource()} and {@link #parseFlat()}
+     * then record every error in {@link #getErrors()} and resynchronize:
+     *
+     * - A failed statement is skipped up to and including the next {@code ;},
+     *   or up to the {@code END} of its block, and is left out of the tree.
+     * - A failed declaration, or a function whose body reaches the next
+     *   {@code FUN}, {@code VAL} or {@code VAR} while recovering, is skipped
+     *   up to that keyword and left out of the tree.
+     * - Input that ends inside a declaration is an error at its end.
+     *
+     * Function bodies are always parsed eagerly in this mode, so all errors
+     * are found in one pass. Parallel parsing falls back to {@link
+     * #parseSource()}.
+     */
+    public void setRecovery(boolean recovery) {
+        this.recovery = recovery;
+    }
+
+    /**
+     * Returns the errors recovered from so far, in input order.
+     */
+    public List<ParseException> getErrors() {
+        return errors;
     }
 
     /**
      * Parses the {@code source} rule.
      */
     public Ast.Source parseSource() throws ParseException {
+        List<Ast> declarations = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+
+        while (tokens.has(0)) {
+            int start = tokens.index;
+            Ast declaration = parseDeclarationOrRecover();
+            if (declaration != null) {
+                declarations.add(declaration);
+                starts.add(start);
+            }
+        }
+
+        //reparse cannot tell where recovered declarations were left out
+        return source(declarations, recovery ? null : starts);
+    }
+
+    /**
+     * Creates the source of {@code declarations}, keeping the index of the
+     * token each starts at for {@link #reparse}, or not if {@code starts} is
+     * {@code null}.
+     */
+    private static Ast.Source source(List<Ast> declarations, List<Integer> starts) {
         List<Ast.Global> globals = new ArrayList<>();
         List<Ast.Function> functions = new ArrayList<>();
+        for (Ast declaration : declarations) {
+            if (declaration instanceof Ast.Global) {
+                globals.add((Ast.Global) declaration);
+            } else {
+                functions.add((Ast.Function) declaration);
+            }
+        }
+        Ast.Source source = new Ast.Source(globals, functions);
+        if (starts != null) {
+            source.declarationStarts = new int[starts.size()];
+            for (int i = 0; i < starts.size(); i++) {
+                source.declarationStarts[i] = starts.get(i);
+            }
+        }
+        return source;
+    }
 
+    /**
+     * Parses the {@code source} rule into a {@link FlatAst}. Each top-level
+     * declaration is flattened as soon as it is parsed, so only one
+     * declaration exists as {@link Ast} objects at a time.
+     */
+    public FlatAst parseFlat() throws ParseException {
+        FlatAst.Builder builder = new FlatAst.Builder();
         while (tokens.has(0)) {
-            if (peek("VAL") || peek("VAR")) {
-                globals.add(parseGlobal());
-            } else if (peek("FUN")) {
-                functions.add(parseFunction());
+            Ast declaration = parseDeclarationOrRecover();
+            if (declaration != null) {
+                builder.add(declaration);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses the {@code source} rule in parallel on the common {@link
+     * ForkJoinPool}.
+     */
+    public Ast.Source parseSourceParallel() throws ParseException {
+        return parseSourceParallel(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses the {@code source} rule in parallel, returning the same tree (or
+     * throwing the same first error) as {@link #parseSource()}. This needs
+     * random access to the tokens, so a parser over an {@link Iterator} just
+     * calls {@link #parseSource()}, as does one in recovery mode or over too
+     * few tokens to split, before scanning anything.
+     *
+     * The tokens are pre-scanned for {@code FUN} keywords outside of any
+     * block, counting blocks with {@link #blockDelta(int)}. Chunks of functions starting at these are
+     * parsed independently, then joined in order. A chunk is only used if it
+     * starts exactly where the previous one ended, which is where the
+     * sequential parser would start too, so its declarations and errors are
+     * the sequential ones. Anywhere the pre-scan guessed wrong is parsed
+     * sequentially instead.
+     */
+    public Ast.Source parseSourceParallel(ForkJoinPool pool) throws ParseException {
+        if (!(tokens instanceof RandomAccessTokenStream) || recovery) {
+            return parseSource();
+        }
+        int start = tokens.index;
+        int end = ((RandomAccessTokenStream) tokens).size();
+        int chunks = Math.min((end - start) / MIN_CHUNK, pool.getParallelism() * 4);
+        if (chunks < 2) {
+            return parseSource();
+        }
+        List<Integer> functions = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; start + i < end; i++) {
+            if (tokens.kind(i) == Token.Kind.FUN && depth == 0 && i > 0) {
+                functions.add(start + i);
+            }
+            depth = Math.max(depth + blockDelta(i), 0);
+        }
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(start);
+        for (int i = 1; i < chunks; i++) {
+            int split = functions.size() * i / chunks;
+            if (split < functions.size() && functions.get(split) > bounds.get(bounds.size() - 1)) {
+                bounds.add(functions.get(split));
+            }
+        }
+        bounds.add(end);
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            Parser chunk = new Parser(((RandomAccessTokenStream) tokens).at(bounds.get(i)));
+            chunk.lazyBodies = lazyBodies;
+            chunk.explicitStack = explicitStack;
+            int limit = bounds.get(i + 1);
+            tasks.add(() -> chunk.parseChunk(limit));
+        }
+        List<Future<Chunk>> results = pool.invokeAll(tasks);
+
+        List<Ast> declarations = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        int position = start;
+        int next = 0;
+        while (position < end) {
+            while (next + 1 < bounds.size() && bounds.get(next) < position) {
+                next++;
+            }
+            if (next + 1 < bounds.size() && bounds.get(next) == position) {
+                Chunk chunk = join(results.get(next));
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                declarations.addAll(chunk.declarations);
+                starts.addAll(chunk.starts);
+                position = chunk.end;
             } else {
-                throw new ParseException("Unexpected token: " + tokens.get(0).getLiteral(), tokens.get(0).getIndex());
+                //the previous chunk ran past its bound, continue sequentially
+                Parser parser = new Parser(((RandomAccessTokenStream) tokens).at(position));
+                parser.lazyBodies = lazyBodies;
+                parser.explicitStack = explicitStack;
+                declarations.add(parser.parseDeclaration());
+                starts.add(position);
+                position = parser.tokens.index;
             }
         }
+        tokens.index = end;
+        return source(declarations, starts);
+    }
 
-        return new Ast.Source(globals, functions);
+    /**
+     * Parses declarations until reaching or passing the token at {@code
+     * limit}, keeping any error instead of throwing it as the chunk may turn
+     * out not to be needed.
+     */
+    private Chunk parseChunk(int limit) {
+        List<Ast> declarations = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        try {
+            while (tokens.has(0) && tokens.index < limit) {
+                starts.add(tokens.index);
+                declarations.add(parseDeclaration());
+            }
+        } catch (RuntimeException e) {
+            return new Chunk(declarations, starts, tokens.index, e);
+        }
+        return new Chunk(declarations, starts, tokens.index, null);
+    }
+
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reparses the {@code source} rule after an edit, reusing the declarations
+     * of {@code previous} that the edit cannot have changed. This parser must
+     * be over the tokens of the edited source (such as from {@link
+     * Lexer#relex(List, int, int, String)}), while {@code previousTokens} are
+     * the tokens {@code previous} was parsed from.
+     * The edit replaced {@code removed} chars at {@code offset} with {@code
+     * inserted}, the same arguments as for {@code relex}.
+     *
+     * Declarations ending before the edit and starting after it are shared by
+     * reference with {@code previous}, and only the ones in between are
+     * parsed again. The token each declaration starts at is kept in the trees
+     * from {@link #parseSource()}, {@link #parseSourceParallel()} and this
+     * method, so the work done only grows with the number of declarations and
+     * the tokens parsed again. For any other tree, such as one from {@link
+     * AstReader}, {@code previousTokens} are scanned for them first.
+     *
+     * If the declarations of {@code previous} cannot be matched up with
+     * {@code previousTokens}, or this parser is over an {@link Iterator} and
+     * so has no random access to its tokens, the whole source is parsed again.
+     */
+    public Ast.Source reparse(Ast.Source previous, List<Token> previousTokens, int offset, int removed, String inserted) throws ParseException {
+        if (!(tokens instanceof RandomAccessTokenStream)) {
+            return parseSource();
+        }
+        int[] starts = previous.declarationStarts != null ? previous.declarationStarts : new Parser(previousTokens).declarationStarts();
+        int count = starts.length;
+        if (count != previous.getGlobals().size() + previous.getFunctions().size()) {
+            return parseSource();
+        }
+        List<Ast> declarations = new ArrayList<>(count);
+        Iterator<Ast.Global> globals = previous.getGlobals().iterator();
+        Iterator<Ast.Function> functions = previous.getFunctions().iterator();
+        for (int start : starts) {
+            if (start < 0 || start >= previousTokens.size()) {
+                return parseSource();
+            }
+            //the name always follows the VAL, VAR or FUN
+            String name = start + 1 < previousTokens.size() ? previousTokens.get(start + 1).getLiteral() : null;
+            if (previousTokens.get(start).getKind() == Token.Kind.FUN && functions.hasNext()) {
+                Ast.Function function = functions.next();
+                if (!function.getName().equals(name)) {
+                    return parseSource();
+                }
+                declarations.add(function);
+            } else if (previousTokens.get(start).getKind() != Token.Kind.FUN && globals.hasNext()) {
+                Ast.Global global = globals.next();
+                if (!global.getName().equals(name)) {
+                    return parseSource();
+                }
+                declarations.add(global);
+            } else {
+                return parseSource();
+            }
+        }
+
+        //tokens ending 2 chars before the edit were lexed without reading it,
+        //so the declarations they end are the first ones, found by a binary
+        //search, and the last of them is checked against the new tokens
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Token last = previousTokens.get((mid + 1 < count ? starts[mid + 1] : previousTokens.size()) - 1);
+            if (last.getIndex() + last.getLiteral().length() + 2 > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int prefix = low;
+        while (prefix > 0) {
+            int last = (prefix < count ? starts[prefix] : previousTokens.size()) - 1;
+            if (tokens.has(last - tokens.index) && previousTokens.get(last).equals(tokens.get(last - tokens.index))) {
+                break;
+            }
+            prefix--;
+        }
+        //once the new tokens start a token where an old one after the edit
+        //started, the rest of the tokens are the same, just shifted, so the
+        //declarations that start with such a token are the last ones
+        int tokenDelta = ((RandomAccessTokenStream) tokens).size() - previousTokens.size();
+        low = prefix;
+        high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (shifted(previousTokens.get(starts[mid]), starts[mid] + tokenDelta, offset + removed, inserted.length() - removed)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int suffix = low;
+
+        Parser parser = new Parser(((RandomAccessTokenStream) tokens).at(prefix == 0 ? tokens.index : starts[prefix]));
+        parser.lazyBodies = lazyBodies;
+        parser.explicitStack = explicitStack;
+        List<Ast> result = new ArrayList<>(declarations.subList(0, prefix));
+        List<Integer> reparsedStarts = new ArrayList<>();
+        int next = suffix;
+        while (true) {
+            while (next < count && starts[next] + tokenDelta < parser.tokens.index) {
+                next++;
+            }
+            if (!parser.tokens.has(0) || next < count && starts[next] + tokenDelta == parser.tokens.index) {
+                break;
+            }
+            reparsedStarts.add(parser.tokens.index);
+            result.add(parser.parseDeclaration());
+        }
+        result.addAll(declarations.subList(next, count));
+        int[] resultStarts = new int[result.size()];
+        System.arraycopy(starts, 0, resultStarts, 0, prefix);
+        for (int i = 0; i < reparsedStarts.size(); i++) {
+            resultStarts[prefix + i] = reparsedStarts.get(i);
+        }
+        for (int i = next; i < count; i++) {
+            resultStarts[prefix + reparsedStarts.size() + i - next] = starts[i] + tokenDelta;
+        }
+        tokens.index = ((RandomAccessTokenStream) tokens).size();
+        Ast.Source source = source(result, null);
+        source.declarationStarts = resultStarts;
+        return source;
+    }
+
+    /**
+     * Returns true if the old token {@code first}, at or after the end of the
+     * edit, is the same as the new token at {@code index}, just shifted by
+     * {@code delta} chars.
+     */
+    private boolean shifted(Token first, int index, int editEnd, int delta) {
+        if (first.getIndex() < editEnd || index < tokens.index || !tokens.has(index - tokens.index)) {
+            return false;
+        }
+        Token token = tokens.get(index - tokens.index);
+        return token.getType() == first.getType() && token.getLiteral().equals(first.getLiteral())
+                && token.getIndex() == first.getIndex() + delta;
+    }
+
+    /**
+     * Returns the indices of the tokens starting top-level declarations, that
+     * is {@code VAL}, {@code VAR} and {@code FUN} outside of any block.
+     */
+    private int[] declarationStarts() {
+        List<Integer> starts = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; tokens.has(i); i++) {
+            Token.Kind kind = tokens.kind(i);
+            if (depth == 0 && (kind == Token.Kind.VAL || kind == Token.Kind.VAR || kind == Token.Kind.FUN)) {
+                starts.add(tokens.index + i);
+            }
+            depth = Math.max(depth + blockDelta(i), 0);
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns the top-level declarations of the {@code source} rule as a lazy
+     * stream. Each {@link Ast.Global} or {@link Ast.Function} is parsed when
+     * the stream pulls it, so it can be analyzed or generated while the rest
+     * of the input is unparsed. With a parser over {@link Lexer#tokens()},
+     * only the declaration in progress is kept in memory.
+     *
+     * A {@link ParseException} is thrown from the stream operation that pulls
+     * the invalid declaration, after the earlier ones have been handed on.
+     */
+    public Stream<Ast> declarations() {
+        Iterator<Ast> iterator = new Iterator<Ast>() {
+
+            @Override
+            public boolean hasNext() {
+                return tokens.has(0);
+            }
+
+            @Override
+            public Ast next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return parseDeclaration();
+            }
+
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Parses a declaration with {@link #parseDeclaration()}. In recovery mode,
+     * an error is recorded instead and {@code null} returned, after skipping
+     * to the next {@code FUN}, {@code VAL} or {@code VAR}.
+     */
+    private Ast parseDeclarationOrRecover() throws ParseException {
+        int start = tokens.index;
+        try {
+            return parseDeclaration();
+        } catch (ParseException e) {
+            if (!recovery) {
+                throw e;
+            }
+            record(e);
+            if (tokens.index == start) {
+                tokens.advance();
+            }
+            while (tokens.has(0) && tokens.kind(0) != Token.Kind.FUN && tokens.kind(0) != Token.Kind.VAL && tokens.kind(0) != Token.Kind.VAR) {
+                tokens.advance();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Parses a statement of a block with {@link #parseStatement()}, or in
+     * recovery mode records an error and returns {@code null}.
+     */
+    private Ast.Statement parseStatementOrRecover() throws ParseException {
+        checkEnd();
+        try {
+            return parseStatement();
+        } catch (ParseException e) {
+            recoverStatement(e);
+            return null;
+        }
+    }
+
+    /**
+     * In recovery mode, throws an error if the input ended inside a block.
+     * This is the usual result of recovering from an error in a function, so
+     * it gets a proper error rather than failing on the missing token.
+     */
+    private void checkEnd() throws ParseException {
+        if (recovery && !tokens.has(0)) {
+            throw new ParseException("Expected 'END'", tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length());
+        }
+    }
+
+    /**
+     * In recovery mode, throws an error if the input ended where a rule needs
+     * another token, such as the name after {@code FUN}. Outside of recovery
+     * mode the read past the last token fails as it always has.
+     */
+    private void checkToken() throws ParseException {
+        if (recovery && !tokens.has(0)) {
+            throw new ParseException("Unexpected end of input", tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length());
+        }
+    }
+
+    /**
+     * Records {@code e} in recovery mode and skips to the end of the failed
+     * statement: past the next {@code ;}, or up to the next {@code END}. If a
+     * {@code FUN}, {@code VAL} or {@code VAR} (or the end of the input) comes
+     * first, the enclosing function cannot be finished, so {@code e} is
+     * rethrown for {@link #parseDeclarationOrRecover()} to skip the rest of
+     * it. Outside of recovery mode, {@code e} is always rethrown.
+     */
+    private void recoverStatement(ParseException e) throws ParseException {
+        if (!recovery) {
+            throw e;
+        }
+        record(e);
+        while (tokens.has(0)) {
+            switch (tokens.kind(0)) {
+                case SEMICOLON:
+                    tokens.advance();
+                    return;
+                case END:
+                    return;
+                case FUN:
+                case VAL:
+                case VAR:
+                    throw e;
+            }
+            tokens.advance();
+        }
+        throw e;
+    }
+
+    /**
+     * Adds {@code e} to the errors, unless it is the last error and is being
+     * rethrown through an enclosing block or declaration.
+     */
+    private void record(ParseException e) {
+        if (errors.isEmpty() || errors.get(errors.size() - 1) != e) {
+            errors.add(e);
+        }
+    }
+
+    /**
+     * Parses a single top-level declaration of the {@code source} rule, either
+     * a {@code global} or a {@code function}. This method should only be
+     * called if there are tokens left.
+     */
+    public Ast parseDeclaration() throws ParseException {
+        switch (tokens.kind(0)) {
+            case VAL:
+            case VAR:
+                return parseGlobal();
+            case FUN:
+                return parseFunction();
+            default:
+                throw new ParseException("Unexpected token: " + tokens.get(0).getLiteral(), tokens.get(0).getIndex());
+        }
     }
 
 
@@ -56,22 +660,24 @@ public final class Parser {
      * next tokens start a global, aka {@code LIST|VAL|VAR}.
      */
     public Ast.Global parseGlobal() throws ParseException {
-        boolean mutable = match("VAR");
+        boolean mutable = match(Token.Kind.VAR);
         if (!mutable) {
-            match("VAL");
+            match(Token.Kind.VAL);
         }
-        String name = tokens.get(0).getLiteral();
+        checkToken();
+        String name = tokens.literal(0);
         match(Token.Type.IDENTIFIER);
         String type = "Any"; // Default type
-        if (match(":")) {
-            type = tokens.get(0).getLiteral();
+        if (match(Token.Kind.COLON)) {
+            checkToken();
+            type = tokens.literal(0);
             match(Token.Type.IDENTIFIER);
         }
         Optional<Ast.Expression> value = Optional.empty();
-        if (match("=")) {
+        if (match(Token.Kind.ASSIGN)) {
             value = Optional.of(parseExpression());
         }
-        if (!match(";")) {
+        if (!match(Token.Kind.SEMICOLON)) {
             throw new ParseException("Missing :", tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length());
         }
         return new Ast.Global(name, type, mutable, value);
@@ -85,18 +691,18 @@ public final class Parser {
      * next token declares a list, aka {@code LIST}.
      */
     public Ast.Global parseList() throws ParseException {
-        match("LIST"); // Match the LIST keyword.
-        String name = tokens.get(0).getLiteral(); // Get the list name.
+        match(Token.Kind.LIST); // Match the LIST keyword.
+        String name = tokens.literal(0); // Get the list name.
         match(Token.Type.IDENTIFIER); // Ensure it's an identifier.
-        match("="); // Match the equals sign.
-        match("["); // Start of the list.
+        match(Token.Kind.ASSIGN); // Match the equals sign.
+        match(Token.Kind.LEFT_BRACKET); // Start of the list.
         List<Ast.Expression> values = new ArrayList<>();
-        if (!peek("]")) { // Check if the list is not empty.
+        if (!peek(Token.Kind.RIGHT_BRACKET)) { // Check if the list is not empty.
             do {
                 values.add(parseExpression()); // Parse each expression in the list.
-            } while (match(",")); // Continue if there's a comma.
+            } while (match(Token.Kind.COMMA)); // Continue if there's a comma.
         }
-        match("]"); // End of the list.
+        match(Token.Kind.RIGHT_BRACKET); // End of the list.
         return new Ast.Global(name, true, Optional.of(new Ast.Expression.PlcList(values))); // Since it's a list, mutable is assumed true.
     }
 
@@ -106,22 +712,22 @@ public final class Parser {
      * next token declares a mutable global variable, aka {@code VAR}.
      */
     public Ast.Global parseMutable() throws ParseException {
-        match("VAR");
-        String name = tokens.get(0).getLiteral();
+        match(Token.Kind.VAR);
+        String name = tokens.literal(0);
         match(Token.Type.IDENTIFIER);
-        match("=");
+        match(Token.Kind.ASSIGN);
         Ast.Expression value = parseExpression();
-        match(";");
+        match(Token.Kind.SEMICOLON);
         return new Ast.Global(name, true, Optional.of(value));
     }
 
     public Ast.Global parseImmutable() throws ParseException {
-        match("VAL");
-        String name = tokens.get(0).getLiteral();
+        match(Token.Kind.VAL);
+        String name = tokens.literal(0);
         match(Token.Type.IDENTIFIER);
-        match("=");
+        match(Token.Kind.ASSIGN);
         Ast.Expression value = parseExpression();
-        match(";");
+        match(Token.Kind.SEMICOLON);
         return new Ast.Global(name, false, Optional.of(value));
     }
 
@@ -131,27 +737,369 @@ public final class Parser {
      * next tokens start a method, aka {@code FUN}.
      */
     public Ast.Function parseFunction() throws ParseException {
-        match("FUN");
-        String name = tokens.get(0).getLiteral();
+        match(Token.Kind.FUN);
+        checkToken();
+        String name = tokens.literal(0);
         match(Token.Type.IDENTIFIER);
-        match("(");
+        match(Token.Kind.LEFT_PAREN);
         List<String> parameters = new ArrayList<>(); // Assuming parameters are parsed elsewhere
         List<String> parameterTypes = new ArrayList<>(); // Assuming parameter types are parsed elsewhere
-        match(")");
+        match(Token.Kind.RIGHT_PAREN);
         Optional<String> returnType = Optional.of("Any"); // Default return type
-        if (match(":")) {
-            returnType = Optional.of(tokens.get(0).getLiteral());
+        if (match(Token.Kind.COLON)) {
+            checkToken();
+            returnType = Optional.of(tokens.literal(0));
             match(Token.Type.IDENTIFIER);
         }
-        if (!match("DO")) {
+        if (!match(Token.Kind.DO)) {
             int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
             throw new ParseException("Missing Operand", size);
         }
+        if (lazyBodies && !recovery) {
+            int end = findEnd();
+            if (end >= 0) {
+                //setLazyBodies only allows lazy bodies with random access
+                RandomAccessTokenStream body = ((RandomAccessTokenStream) tokens).at(tokens.index);
+                int start = tokens.index;
+                boolean explicitStack = this.explicitStack;
+                tokens.index = end;
+                match(Token.Kind.END);
+                return new Ast.Function(name, parameters, parameterTypes, returnType,
+                        () -> parseBody(body, end, explicitStack), () -> hashBody(body.at(start), end));
+            }
+        }
         List<Ast.Statement> statements = parseBlock();
-        match("END");
+        match(Token.Kind.END);
         return new Ast.Function(name, parameters, parameterTypes, returnType, statements);
     }
 
+    /**
+     * Returns the index of the {@code END} closing the function body starting
+     * at the current token, or -1 if the body has to be parsed right away.
+     *
+     * The body is scanned with the same rules as {@link #parseBlock()}, but
+     * without building any nodes, so it is only skipped if parsing it later
+     * succeeds and ends at the same {@code END}. A body that would fail to
+     * parse, or that nests deeper than {@link #MAX_SKIP_DEPTH}, returns -1
+     * so it is parsed eagerly and any error is thrown where it would be
+     * without lazy bodies.
+     */
+    private int findEnd() {
+        int end = skipBlock(0, 0);
+        return end < 0 ? -1 : tokens.index + end;
+    }
+
+    /*
+     * The skip methods below mirror the parse methods of the same rules. Each
+     * takes the offset of the first token of its rule and returns the offset
+     * just past it, or -1 if parsing the rule there would fail. A change to
+     * what a parse method accepts, down to a keyword it matches a second
+     * time, has to be made to its skip method too.
+     */
+
+    /**
+     * Skips the statements of a block, returning the offset of its {@code END}.
+     */
+    private int skipBlock(int offset, int depth) {
+        while (offset >= 0 && kindAt(offset) != Token.Kind.END) {
+            offset = skipStatement(offset, depth);
+        }
+        return offset;
+    }
+
+    private int skipStatement(int offset, int depth) {
+        if (depth > MAX_SKIP_DEPTH) {
+            return -1;
+        }
+        switch (kindAt(offset)) {
+            case IF: {
+                offset = skipExpression(offset + 1, depth + 1);
+                if (offset < 0 || kindAt(offset) != Token.Kind.DO) {
+                    return -1;
+                }
+                offset++;
+                while (offset >= 0 && kindAt(offset) != Token.Kind.ELSE && kindAt(offset) != Token.Kind.END) {
+                    offset = skipStatement(offset, depth + 1);
+                }
+                if (offset >= 0 && kindAt(offset) == Token.Kind.ELSE) {
+                    offset = skipBlock(offset + 1, depth + 1);
+                }
+                return offset < 0 ? -1 : offset + 1;
+            }
+            case WHILE: {
+                //parseWhileStatement matches WHILE again
+                offset++;
+                if (kindAt(offset) == Token.Kind.WHILE) {
+                    offset++;
+                }
+                offset = skipExpression(offset, depth + 1);
+                if (offset < 0 || kindAt(offset) != Token.Kind.DO) {
+                    return -1;
+                }
+                offset = skipBlock(offset + 1, depth + 1);
+                return offset < 0 ? -1 : offset + 1;
+            }
+            case RETURN: {
+                //parseReturnStatement matches RETURN again
+                offset++;
+                if (kindAt(offset) == Token.Kind.RETURN) {
+                    offset++;
+                }
+                offset = skipExpression(offset, depth + 1);
+                if (offset >= 0 && kindAt(offset) == Token.Kind.SEMICOLON) {
+                    offset++;
+                }
+                return offset;
+            }
+            case LET: {
+                //parseDeclarationStatement matches LET again, and no ;
+                offset++;
+                if (kindAt(offset) == Token.Kind.LET) {
+                    offset++;
+                }
+                if (typeAt(offset) != Token.Type.IDENTIFIER) {
+                    return -1;
+                }
+                offset++;
+                if (kindAt(offset) == Token.Kind.COLON) {
+                    if (typeAt(offset + 1) != Token.Type.IDENTIFIER) {
+                        return -1;
+                    }
+                    offset += 2;
+                }
+                if (kindAt(offset) == Token.Kind.ASSIGN) {
+                    offset = skipExpression(offset + 1, depth + 1);
+                }
+                return offset;
+            }
+            case SWITCH: {
+                //a CASE block runs up to the END, so DEFAULT is always missing
+                offset = skipExpression(offset + 1, depth + 1);
+                if (offset < 0 || kindAt(offset) != Token.Kind.DEFAULT || kindAt(offset + 1) != Token.Kind.COLON) {
+                    return -1;
+                }
+                offset = skipBlock(offset + 2, depth + 1);
+                return offset < 0 ? -1 : offset + 1;
+            }
+        }
+        if (typeAt(offset) != Token.Type.IDENTIFIER) {
+            return -1;
+        }
+        offset++;
+        switch (kindAt(offset)) {
+            case ASSIGN:
+                offset = skipExpression(offset + 1, depth + 1);
+                return offset < 0 || kindAt(offset) != Token.Kind.SEMICOLON ? -1 : offset + 1;
+            case LEFT_PAREN:
+                //the ) and ; of a call statement are optional
+                offset++;
+                if (kindAt(offset) != Token.Kind.RIGHT_PAREN) {
+                    offset = skipExpression(offset, depth + 1);
+                    while (offset >= 0 && kindAt(offset) == Token.Kind.COMMA) {
+                        offset = skipExpression(offset + 1, depth + 1);
+                    }
+                    if (offset < 0) {
+                        return -1;
+                    }
+                }
+                if (kindAt(offset) == Token.Kind.RIGHT_PAREN) {
+                    offset++;
+                }
+                if (kindAt(offset) == Token.Kind.SEMICOLON) {
+                    offset++;
+                }
+                return offset;
+            case LEFT_BRACKET:
+                offset = skipExpression(offset + 1, depth + 1);
+                if (offset < 0 || kindAt(offset) != Token.Kind.RIGHT_BRACKET) {
+                    return -1;
+                }
+                offset++;
+                if (kindAt(offset) == Token.Kind.ASSIGN) {
+                    offset = skipExpression(offset + 1, depth + 1);
+                    return offset < 0 || kindAt(offset) != Token.Kind.SEMICOLON ? -1 : offset + 1;
+                }
+                break;
+        }
+        //an access statement needs a ;, and takes a second one
+        if (kindAt(offset) != Token.Kind.SEMICOLON) {
+            return -1;
+        }
+        offset++;
+        return kindAt(offset) == Token.Kind.SEMICOLON ? offset + 1 : offset;
+    }
+
+    private int skipExpression(int offset, int depth) {
+        offset = skipPrimary(offset, depth);
+        while (offset >= 0 && PRECEDENCE.containsKey(kindAt(offset))) {
+            //a - lexed as an integer has the kind of an operator but is then
+            //parsed as an operand, as parseBinaryExpression only matches
+            //operator tokens
+            if (typeAt(offset) == Token.Type.OPERATOR) {
+                offset++;
+            }
+            offset = skipPrimary(offset, depth);
+        }
+        return offset;
+    }
+
+    private int skipPrimary(int offset, int depth) {
+        if (depth > MAX_SKIP_DEPTH || !tokens.has(offset)) {
+            return -1;
+        }
+        switch (tokens.type(offset)) {
+            case IDENTIFIER:
+                Token.Kind kind = tokens.kind(offset);
+                offset++;
+                if (kind == Token.Kind.NIL || kind == Token.Kind.TRUE || kind == Token.Kind.FALSE) {
+                    return offset;
+                }
+                if (kindAt(offset) == Token.Kind.LEFT_PAREN) {
+                    //arguments need no commas between them, but no trailing one
+                    offset++;
+                    while (kindAt(offset) != Token.Kind.RIGHT_PAREN) {
+                        offset = skipExpression(offset, depth + 1);
+                        if (offset < 0) {
+                            return -1;
+                        }
+                        if (kindAt(offset) == Token.Kind.COMMA) {
+                            offset++;
+                            if (kindAt(offset) == Token.Kind.RIGHT_PAREN) {
+                                return -1;
+                            }
+                        }
+                    }
+                    return offset + 1;
+                }
+                if (kindAt(offset) == Token.Kind.LEFT_BRACKET) {
+                    offset = skipExpression(offset + 1, depth + 1);
+                    return offset < 0 || kindAt(offset) != Token.Kind.RIGHT_BRACKET ? -1 : offset + 1;
+                }
+                return offset;
+            case INTEGER:
+                return isInteger(tokens.literal(offset)) ? offset + 1 : -1;
+            case DECIMAL:
+            case CHARACTER:
+            case STRING:
+                return offset + 1;
+            default:
+                if (tokens.kind(offset) != Token.Kind.LEFT_PAREN) {
+                    return -1;
+                }
+                offset = skipExpression(offset + 1, depth + 1);
+                return offset < 0 || kindAt(offset) != Token.Kind.RIGHT_PAREN ? -1 : offset + 1;
+        }
+    }
+
+    /**
+     * Returns true if {@link #integer(String)} accepts {@code literal}, which
+     * is not the case for a lone {@code -}.
+     */
+    private static boolean isInteger(String literal) {
+        int start = literal.startsWith("-") ? 1 : 0;
+        if (start == literal.length()) {
+            return false;
+        }
+        for (int i = start; i < literal.length(); i++) {
+            if (literal.charAt(i) < '0' || literal.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Token.Kind kindAt(int offset) {
+        return tokens.has(offset) ? tokens.kind(offset) : Token.Kind.NONE;
+    }
+
+    private Token.Type typeAt(int offset) {
+        return tokens.has(offset) ? tokens.type(offset) : null;
+    }
+
+    /**
+     * Returns +1 if the token at {@code offset} opens a block ({@code DO} or
+     * {@code SWITCH}), -1 if it closes one ({@code END}), and 0 otherwise,
+     * without parsing. These keywords are also valid identifiers, so one is
+     * not counted if its neighbours show it is used as an operand, as in
+     * {@code END[i]} or {@code x + END}.
+     */
+    private int blockDelta(int offset) {
+        Token.Kind kind = tokens.kind(offset);
+        if (kind != Token.Kind.DO && kind != Token.Kind.SWITCH && kind != Token.Kind.END) {
+            return 0;
+        }
+        if (tokens.has(offset + 1)) {
+            switch (tokens.kind(offset + 1)) {
+                case LEFT_PAREN:
+                    //the condition of a SWITCH may be a group
+                    if (kind == Token.Kind.SWITCH) {
+                        break;
+                    }
+                    return 0;
+                case LEFT_BRACKET:
+                case RIGHT_PAREN:
+                case RIGHT_BRACKET:
+                case COMMA:
+                case SEMICOLON:
+                case ASSIGN:
+                    return 0;
+                default:
+                    if (PRECEDENCE.containsKey(tokens.kind(offset + 1))) {
+                        return 0;
+                    }
+            }
+        }
+        if (tokens.index + offset > 0) {
+            switch (tokens.kind(offset - 1)) {
+                case LEFT_PAREN:
+                case LEFT_BRACKET:
+                case COMMA:
+                case ASSIGN:
+                case RETURN:
+                case IF:
+                case WHILE:
+                case SWITCH:
+                case CASE:
+                case LET:
+                case VAL:
+                case VAR:
+                case FUN:
+                    return 0;
+                default:
+                    if (PRECEDENCE.containsKey(tokens.kind(offset - 1))) {
+                        return 0;
+                    }
+            }
+        }
+        return kind == Token.Kind.END ? -1 : 1;
+    }
+
+    /**
+     * Hashes the tokens of a lazy function body from {@code body} up to its
+     * {@code END}, which stands in for the hash of its statements.
+     */
+    private static int hashBody(TokenStream body, int end) {
+        int hash = 1;
+        for (int i = 0; body.index + i < end; i++) {
+            hash = 31 * (31 * hash + body.type(i).ordinal()) + body.literal(i).hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Parses a lazy function body from {@code body}, checking that it ends at
+     * the {@code END} found by {@link #findEnd()}.
+     */
+    private static List<Ast.Statement> parseBody(TokenStream body, int end, boolean explicitStack) throws ParseException {
+        Parser parser = new Parser(body);
+        parser.explicitStack = explicitStack;
+        List<Ast.Statement> statements = parser.parseBlock();
+        if (parser.tokens.index != end) {
+            throw new ParseException("Function body does not end at its END", parser.tokens.get(-1).getIndex());
+        }
+        return statements;
+    }
+
 
 
 
@@ -160,66 +1108,253 @@ public final class Parser {
      * preceding token indicates the opening a block of statements.
      */
     public List<Ast.Statement> parseBlock() throws ParseException {
+        if (explicitStack) {
+            return parseBlockFrames(false).statements;
+        }
         List<Ast.Statement> statements = new ArrayList<>();
-        while (!peek("END")) {
-            statements.add(parseStatement());
+        while (!peek(Token.Kind.END)) {
+            Ast.Statement statement = parseStatementOrRecover();
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Parses a block, or a single statement if {@code single}, keeping the
+     * enclosing {@code IF}, {@code WHILE} and {@code SWITCH} statements as
+     * {@link BlockFrame}s instead of recursing into them. Returns the bottom
+     * frame, holding the parsed statements.
+     *
+     * Each step either closes the innermost frame, if its block has ended,
+     * opens a new frame for a nested statement, or parses a statement that
+     * has no block of its own with {@link #parseStatement()}.
+     */
+    private BlockFrame parseBlockFrames(boolean single) throws ParseException {
+        int base = blockFrames.size();
+        BlockFrame bottom = new BlockFrame(Token.Kind.NONE, null);
+        blockFrames.add(bottom);
+        try {
+            while (true) {
+                BlockFrame frame = blockFrames.get(blockFrames.size() - 1);
+                Ast.Statement statement;
+                if (frame == bottom) {
+                    if (!single && peek(Token.Kind.END)) {
+                        return bottom;
+                    }
+                    //a single statement is recovered from by the caller
+                    statement = single ? openStatement() : openStatementOrRecover();
+                } else if (peek(Token.Kind.END) || frame.kind == Token.Kind.IF && frame.thenStatements == null && peek(Token.Kind.ELSE)) {
+                    try {
+                        statement = closeBlock(frame);
+                    } catch (ParseException e) {
+                        //the frame's statement failed, so recover in the block around it
+                        blockFrames.remove(blockFrames.size() - 1);
+                        if (single && blockFrames.size() - 1 == base) {
+                            throw e;
+                        }
+                        recoverStatement(e);
+                        continue;
+                    }
+                    if (statement == null) {
+                        continue;
+                    }
+                    blockFrames.remove(blockFrames.size() - 1);
+                    frame = blockFrames.get(blockFrames.size() - 1);
+                } else {
+                    statement = openStatementOrRecover();
+                }
+                if (statement != null) {
+                    frame.statements.add(statement);
+                    if (single && frame == bottom) {
+                        return bottom;
+                    }
+                }
+            }
+        } finally {
+            truncate(blockFrames, base);
+        }
+    }
+
+    private Ast.Statement openStatementOrRecover() throws ParseException {
+        checkEnd();
+        try {
+            return openStatement();
+        } catch (ParseException e) {
+            recoverStatement(e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts the next statement, opening a frame and returning {@code null}
+     * for a statement with blocks, or otherwise returning the statement.
+     */
+    private Ast.Statement openStatement() throws ParseException {
+        switch (kind()) {
+            case IF: {
+                tokens.advance();
+                Ast.Expression condition = parseExpression();
+                if (!match(Token.Kind.DO)) {
+                    int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
+                    throw new ParseException("Missing DO", size);
+                }
+                blockFrames.add(new BlockFrame(Token.Kind.IF, condition));
+                return null;
+            }
+            case WHILE: {
+                tokens.advance();
+                match(Token.Kind.WHILE);
+                Ast.Expression condition = parseExpression();
+                if (!match(Token.Kind.DO)) {
+                    int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
+                    throw new ParseException("Missing DO", size);
+                }
+                blockFrames.add(new BlockFrame(Token.Kind.WHILE, condition));
+                return null;
+            }
+            case SWITCH: {
+                if (!match(Token.Kind.SWITCH)) {
+                    throw new ParseException("Expected 'SWITCH'", tokens.get(0).getIndex());
+                }
+                BlockFrame frame = new BlockFrame(Token.Kind.SWITCH, parseExpression());
+                frame.cases = new ArrayList<>();
+                openCase(frame);
+                blockFrames.add(frame);
+                return null;
+            }
+            default:
+                return parseStatement();
+        }
+    }
+
+    /**
+     * Starts the next {@code CASE} or the {@code DEFAULT} of a switch frame.
+     */
+    private void openCase(BlockFrame frame) throws ParseException {
+        if (match(Token.Kind.CASE)) {
+            Ast.Expression value = parseExpression();
+            if (!match(Token.Kind.COLON)) {
+                checkToken();
+                throw new ParseException("Expected ':'", tokens.get(0).getIndex());
+            }
+            frame.value = Optional.of(value);
+        } else {
+            if (!match(Token.Kind.DEFAULT)) {
+                checkToken();
+                throw new ParseException("Missing 'DEFAULT", tokens.get(0).getIndex());
+            }
+            if (!match(Token.Kind.COLON)) {
+                checkToken();
+                throw new ParseException("Expected ':'", tokens.get(0).getIndex());
+            }
+            frame.value = Optional.empty();
+        }
+        frame.statements = new ArrayList<>();
+    }
+
+    /**
+     * Ends the current block of {@code frame}, returning the finished
+     * statement, or {@code null} if the statement continues with another
+     * block, as for {@code ELSE} and each case of a {@code SWITCH}.
+     */
+    private Ast.Statement closeBlock(BlockFrame frame) throws ParseException {
+        switch (frame.kind) {
+            case IF:
+                if (frame.thenStatements == null) {
+                    frame.thenStatements = frame.statements;
+                    frame.statements = new ArrayList<>();
+                    if (match(Token.Kind.ELSE)) {
+                        return null;
+                    }
+                }
+                if (!match(Token.Kind.END)) {
+                    throw new ParseException("Expected 'END'", tokens.get(-1).getIndex());
+                }
+                return new Ast.Statement.If(frame.condition, frame.thenStatements, frame.statements);
+            case WHILE:
+                if (!match(Token.Kind.END)) {
+                    throw new ParseException("No END", tokens.get(0).getIndex());
+                }
+                return new Ast.Statement.While(frame.condition, frame.statements);
+            case SWITCH:
+                frame.cases.add(new Ast.Statement.Case(frame.value, frame.statements));
+                if (frame.value.isPresent()) {
+                    openCase(frame);
+                    return null;
+                }
+                if (!match(Token.Kind.END)) {
+                    throw new ParseException("Expected 'END'", tokens.get(0).getIndex());
+                }
+                return new Ast.Statement.Switch(frame.condition, frame.cases);
+            default:
+                throw new AssertionError(frame.kind);
+        }
+    }
+
+
+    public Ast.Statement parseStatement() throws ParseException {
+        if (explicitStack && (kind() == Token.Kind.IF || kind() == Token.Kind.WHILE || kind() == Token.Kind.SWITCH)) {
+            return parseBlockFrames(true).statements.get(0);
+        }
+        switch (kind()) {
+            case IF:
+                tokens.advance();
+                return parseIfStatement();
+            case WHILE:
+                tokens.advance();
+                return parseWhileStatement();
+            case RETURN:
+                tokens.advance();
+                return parseReturnStatement();
+            case LET:
+                tokens.advance();
+                return parseDeclarationStatement();
+            case SWITCH:
+                return parseSwitchStatement();
         }
-        return statements;
-    }
-
-
-    public Ast.Statement parseStatement() throws ParseException {
-        if (match("IF")) {
-            return parseIfStatement();
-        } else if (match("WHILE")) {
-            return parseWhileStatement();
-        } else if (match("RETURN")) {
-            return parseReturnStatement();
-        } else if (match("LET")) {
-            return parseDeclarationStatement();
-        } else if (peek("SWITCH"))
-            return parseSwitchStatement();
 
         if (!peek(Token.Type.IDENTIFIER)) {
             throw new ParseException("Expected identifier at the beginning of the statement", tokens.get(0).getIndex());
         }
 
-        String identifier = tokens.get(0).getLiteral();
+        String identifier = tokens.literal(0);
         match(Token.Type.IDENTIFIER);
 
-        if (match("=")) {
+        if (match(Token.Kind.ASSIGN)) {
             // It's an assignment statement
             Ast.Expression value = parseExpression();
-            if (!match(";")) {
+            if (!match(Token.Kind.SEMICOLON)) {
                 throw new ParseException("Missing ;", tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length());
             }
             return new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), identifier), value);
-        } else if (match("(")) {
+        } else if (match(Token.Kind.LEFT_PAREN)) {
             // It's a function call
             List<Ast.Expression> arguments = new ArrayList<>();
-            if (!peek(")")) {
+            if (!peek(Token.Kind.RIGHT_PAREN)) {
                 do {
                     arguments.add(parseExpression());
-                } while (match(","));
+                } while (match(Token.Kind.COMMA));
             }
-            match(")");
-            match(";"); // Function calls must end with a semicolon
+            match(Token.Kind.RIGHT_PAREN);
+            match(Token.Kind.SEMICOLON); // Function calls must end with a semicolon
             return new Ast.Statement.Expression(new Ast.Expression.Function(identifier, arguments));
         }
-        else if (match("[")) {
+        else if (match(Token.Kind.LEFT_BRACKET)) {
             //match("[");
             //list, get next expression
             Ast.Expression nextExp = parseExpression();
-            if (peek("]")) {
-                match("]");
+            if (peek(Token.Kind.RIGHT_BRACKET)) {
+                match(Token.Kind.RIGHT_BRACKET);
             }
             else {
                 int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
                 throw new ParseException("Missing ]", size);
             }
-            if (match("=")) {
+            if (match(Token.Kind.ASSIGN)) {
                 Ast.Expression value = parseExpression();
-                if (!match(";")) {
+                if (!match(Token.Kind.SEMICOLON)) {
                     int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
                     throw new ParseException("Missing ;", size);
                 }
@@ -252,10 +1387,10 @@ public final class Parser {
             }*/
         }
         // It's a simple expression statement or an error
-        if (!match(";")) {
+        if (!match(Token.Kind.SEMICOLON)) {
             throw new ParseException("Missing ;", 1);
         }
-        match(";"); // Assuming it was just a variable access
+        match(Token.Kind.SEMICOLON); // Assuming it was just a variable access
         return new Ast.Statement.Expression(new Ast.Expression.Access(Optional.empty(), identifier));
     }
 
@@ -268,22 +1403,22 @@ public final class Parser {
 
     //"Let identifier ('=' expression)? ';'
     public Ast.Statement.Declaration parseDeclarationStatement() throws ParseException {
-        match("LET");
+        match(Token.Kind.LET);
         if (!match(Token.Type.IDENTIFIER)){
             //throw a parse exception
             throw new ParseException("Expected identifier but was not provided", -1);
         }
-        String name = tokens.get(-1).getLiteral();
+        String name = tokens.literal(-1);
         Optional<Ast.Expression> value = Optional.empty();
         Optional<String> typeName = Optional.empty();  // Initialize type name as empty
-        if (match(":")) {  // Check if there is a type specifier
+        if (match(Token.Kind.COLON)) {  // Check if there is a type specifier
             if (!match(Token.Type.IDENTIFIER)){
                 //throw a parse exception if type identifier is missing after ':'
                 throw new ParseException("Expected type identifier but was not provided", -1);
             }
-            typeName = Optional.of(tokens.get(-1).getLiteral());  // Capture the type name
+            typeName = Optional.of(tokens.literal(-1));  // Capture the type name
         }
-        if (match("=")){
+        if (match(Token.Kind.ASSIGN)){
             value = Optional.of(parseExpression());
         }
         return new Ast.Statement.Declaration(name, typeName,value);
@@ -296,21 +1431,27 @@ public final class Parser {
      */
     public Ast.Statement.If parseIfStatement() throws ParseException {
         Ast.Expression condition = parseExpression();
-        if (!match("DO")) {
+        if (!match(Token.Kind.DO)) {
             int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
             throw new ParseException("Missing DO", size);
         }
         List<Ast.Statement> thenStatements = new ArrayList<>();
-        while (!peek("ELSE") && !peek("END")) {
-            thenStatements.add(parseStatement());
+        while (!peek(Token.Kind.ELSE) && !peek(Token.Kind.END)) {
+            Ast.Statement statement = parseStatementOrRecover();
+            if (statement != null) {
+                thenStatements.add(statement);
+            }
         }
         List<Ast.Statement> elseStatements = new ArrayList<>();
-        if (match("ELSE")) {
-            while (!peek("END")) {
-                elseStatements.add(parseStatement());
+        if (match(Token.Kind.ELSE)) {
+            while (!peek(Token.Kind.END)) {
+                Ast.Statement statement = parseStatementOrRecover();
+                if (statement != null) {
+                    elseStatements.add(statement);
+                }
             }
         }
-        if (!match("END")) {
+        if (!match(Token.Kind.END)) {
             throw new ParseException("Expected 'END'", tokens.get(-1).getIndex());
         }
         return new Ast.Statement.If(condition, thenStatements, elseStatements);
@@ -322,29 +1463,32 @@ public final class Parser {
      * {@code SWITCH}.
      */
     public Ast.Statement.Switch parseSwitchStatement() throws ParseException {
-        if (!match("SWITCH")) {
+        if (!match(Token.Kind.SWITCH)) {
             throw new ParseException("Expected 'SWITCH'", tokens.get(0).getIndex());
         }
 
         List<Ast.Statement.Case> cases = new ArrayList<>();
         Ast.Expression condition = parseExpression();
 
-        while (match("CASE")) { Ast.Expression caseExpression = parseExpression();
-            if (!match(":")) {
+        while (match(Token.Kind.CASE)) { Ast.Expression caseExpression = parseExpression();
+            if (!match(Token.Kind.COLON)) {
+                checkToken();
                 throw new ParseException("Expected ':'", tokens.get(0).getIndex());
             }
             List<Ast.Statement> caseStatements = parseBlock();
             cases.add(new Ast.Statement.Case(Optional.of(caseExpression), caseStatements));
         }
-        if (!match("DEFAULT")) {
+        if (!match(Token.Kind.DEFAULT)) {
+            checkToken();
             throw new ParseException("Missing 'DEFAULT", tokens.get(0).getIndex());
         }
-        if (!match(":")) {
+        if (!match(Token.Kind.COLON)) {
+            checkToken();
             throw new ParseException("Expected ':'", tokens.get(0).getIndex());
         }
         List<Ast.Statement> defaultStatements = parseBlock();
         cases.add(new Ast.Statement.Case(Optional.empty(), defaultStatements));
-        if (!match("END")) {
+        if (!match(Token.Kind.END)) {
             throw new ParseException("Expected 'END'", tokens.get(0).getIndex());
         }
         return new Ast.Statement.Switch(condition, cases);
@@ -357,33 +1501,33 @@ public final class Parser {
      * default block of a switch statement, aka {@code CASE} or {@code DEFAULT}.
      */
     public Ast.Statement.Case parseCaseStatement() throws ParseException {
-        if (!match("CASE")) {throw new ParseException("Expected CASE", tokens.get(0).getIndex());}
-        if (!match(":")) {throw new ParseException("Expected semicolon", tokens.get(0).getIndex());}
+        if (!match(Token.Kind.CASE)) {throw new ParseException("Expected CASE", tokens.get(0).getIndex());}
+        if (!match(Token.Kind.COLON)) {throw new ParseException("Expected semicolon", tokens.get(0).getIndex());}
         Ast.Expression cExpression = parseExpression();
         List<Ast.Statement> cStatements = parseBlock();
         return new Ast.Statement.Case(Optional.of(cExpression), cStatements);
     }
 
     public Ast.Statement.While parseWhileStatement() throws ParseException {
-        match("WHILE");
+        match(Token.Kind.WHILE);
         Ast.Expression condition = parseExpression();
 
-        if (!match("DO")) {
+        if (!match(Token.Kind.DO)) {
             int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
             throw new ParseException("Missing DO", size);
         }
         List<Ast.Statement> statements = parseBlock();
 
-        if (!match("END")) {
+        if (!match(Token.Kind.END)) {
             throw new ParseException("No END", tokens.get(0).getIndex());
         }
         return new Ast.Statement.While(condition, statements);
     }
 
     public Ast.Statement.Return parseReturnStatement() throws ParseException {
-        match("RETURN"); // Match the RETURN keyword.
+        match(Token.Kind.RETURN); // Match the RETURN keyword.
         Ast.Expression value = parseExpression(); // Parse the return expression.
-        match(";"); // Match the semicolon to end the return statement.
+        match(Token.Kind.SEMICOLON); // Match the semicolon to end the return statement.
         return new Ast.Statement.Return(value);
     }
 
@@ -411,76 +1555,207 @@ public final class Parser {
      * Parses the {@code logical-expression} rule.
      */
     public Ast.Expression parseLogicalExpression() throws ParseException {
-        //get first comp exp
-        Ast.Expression lhs = parseComparisonExpression();
-        //match logical operator
-        if ((!(peek("&&") || peek("||")))) {
-            //check next operation
-            return lhs;
-            //throw new ParseException("Missing logical operator", tokens.index);
-        }
-        String op = tokens.get(0).getLiteral();
-        match(Token.Type.OPERATOR);
-        //get second comp exp
-        Ast.Expression rhs = parseLogicalExpression();
-        return new Ast.Expression.Binary(op, lhs, rhs);
+        return parseBinaryExpression(0);
     }
 
     /**
      * Parses the {@code comparison-expression} rule.
      */
     public Ast.Expression parseComparisonExpression() throws ParseException {
-        //get first add exp
-        Ast.Expression lhs = parseAdditiveExpression();
-        //match logical operator
-        if (!(peek("<") || peek(">") || peek("==") || peek("!="))) {
-            //check next operation
-            return lhs;
-            //throw new ParseException("Missing comparison operator", tokens.index);
-        }
-        String op = tokens.get(0).getLiteral();
-        match(Token.Type.OPERATOR);
-        //get second add exp
-        Ast.Expression rhs = parseComparisonExpression();
-        return new Ast.Expression.Binary(op, lhs, rhs);
+        return parseBinaryExpression(1);
     }
 
     /**
      * Parses the {@code additive-expression} rule.
      */
     public Ast.Expression parseAdditiveExpression() throws ParseException {
-        //get first multtplicative exp
-        Ast.Expression lhs = parseMultiplicativeExpression();
-        //match logical operator
-        if (!(peek("+") || peek("-"))) {
-            //check next operation
-            return lhs;
-            //throw new ParseException("Missing multiplicative operator", tokens.index);
-        }
-        String op = tokens.get(0).getLiteral();
-        match(Token.Type.OPERATOR);
-        //get second multiplicative exp
-        Ast.Expression rhs = parseAdditiveExpression();
-        return new Ast.Expression.Binary(op, lhs, rhs);
+        return parseBinaryExpression(2);
     }
 
     /**
      * Parses the {@code multiplicative-expression} rule.
      */
     public Ast.Expression parseMultiplicativeExpression() throws ParseException {
-        //get first multtplicative exp
-        Ast.Expression lhs = parsePrimaryExpression();
-        //match logical operator
-        if (!(peek("*") || peek("/") || peek("^"))) {
-            //check next operation
-            return lhs;
-            //throw new ParseException("Missing mu operator", tokens.index);
+        return parseBinaryExpression(3);
+    }
+
+    /**
+     * Parses a chain of primary expressions separated by binary operators with
+     * a precedence of at least {@code min}, from {@link #PRECEDENCE}. This is
+     * a loop with explicit operand and operator stacks, so long chains such as
+     * {@code a + b + c + ...} do not use any more Java stack.
+     *
+     * Operators of the same precedence group to the right, so {@code a + b + c}
+     * is {@code a + (b + c)}, the same as the grammar's right-recursive rules.
+     */
+    private Ast.Expression parseBinaryExpression(int min) throws ParseException {
+        if (explicitStack) {
+            return parseExpressionFrames(min);
+        }
+        Ast.Expression first = parsePrimaryExpression();
+        if (!PRECEDENCE.containsKey(kind())) {
+            return first;
+        }
+        //the stacks are shared by nested expressions, each using the part above
+        //where it started
+        int operandBase = operands.size();
+        int operatorBase = operators.size();
+        operands.add(first);
+        try {
+            while (true) {
+                Integer precedence = PRECEDENCE.get(kind());
+                if (precedence == null || precedence < min) {
+                    break;
+                }
+                Token.Kind operator = tokens.kind(0);
+                match(Token.Type.OPERATOR);
+                //only finish operators that bind tighter, equal ones group right
+                while (operators.size() > operatorBase && PRECEDENCE.get(operators.get(operators.size() - 1)) > precedence) {
+                    reduce();
+                }
+                operators.add(operator);
+                operands.add(parsePrimaryExpression());
+            }
+            while (operators.size() > operatorBase) {
+                reduce();
+            }
+            return operands.get(operandBase);
+        } finally {
+            truncate(operands, operandBase);
+            truncate(operators, operatorBase);
+        }
+    }
+
+    private static void truncate(List<?> stack, int size) {
+        while (stack.size() > size) {
+            stack.remove(stack.size() - 1);
+        }
+    }
+
+    /**
+     * Replaces the top two operands with a binary expression of the top
+     * operator.
+     */
+    private void reduce() {
+        Ast.Expression rhs = operands.remove(operands.size() - 1);
+        Ast.Expression lhs = operands.remove(operands.size() - 1);
+        Token.Kind operator = operators.remove(operators.size() - 1);
+        operands.add(new Ast.Expression.Binary(operator.getLiteral(), lhs, rhs));
+    }
+
+    /**
+     * The explicit stack version of {@link #parseBinaryExpression(int)}. A
+     * group, function argument or list offset pushes an {@link
+     * ExpressionFrame} for the inner expression instead of recursing, and the
+     * frame is popped once that expression ends, finishing the primary
+     * expression it was nested in. Operators are handled as before, with each
+     * frame using the operand and operator stacks above its bases.
+     */
+    private Ast.Expression parseExpressionFrames(int min) throws ParseException {
+        int frameBase = expressionFrames.size();
+        int operandBase = operands.size();
+        int operatorBase = operators.size();
+        expressionFrames.add(new ExpressionFrame(null, null, null, min, operandBase, operatorBase));
+        try {
+            while (true) {
+                Ast.Expression primary = openPrimaryExpression();
+                while (primary != null) {
+                    operands.add(primary);
+                    primary = null;
+                    ExpressionFrame frame = expressionFrames.get(expressionFrames.size() - 1);
+                    Integer precedence = PRECEDENCE.get(kind());
+                    if (precedence != null && precedence >= frame.min) {
+                        Token.Kind operator = tokens.kind(0);
+                        match(Token.Type.OPERATOR);
+                        while (operators.size() > frame.operatorBase && PRECEDENCE.get(operators.get(operators.size() - 1)) > precedence) {
+                            reduce();
+                        }
+                        operators.add(operator);
+                        break;
+                    }
+                    while (operators.size() > frame.operatorBase) {
+                        reduce();
+                    }
+                    Ast.Expression expression = operands.get(frame.operandBase);
+                    truncate(operands, frame.operandBase);
+                    expressionFrames.remove(expressionFrames.size() - 1);
+                    if (frame.nesting == null) {
+                        return expression;
+                    }
+                    primary = closeNesting(frame, expression);
+                }
+            }
+        } finally {
+            truncate(expressionFrames, frameBase);
+            truncate(operands, operandBase);
+            truncate(operators, operatorBase);
+        }
+    }
+
+    /**
+     * Starts the next primary expression, pushing a frame and returning {@code
+     * null} if it has an inner expression, or otherwise returning it from
+     * {@link #parsePrimaryExpression()}.
+     */
+    private Ast.Expression openPrimaryExpression() throws ParseException {
+        if (peek(Token.Type.IDENTIFIER) && tokens.has(1) && !peek(Token.Kind.NIL) && !peek(Token.Kind.TRUE) && !peek(Token.Kind.FALSE)) {
+            Token.Kind next = tokens.kind(1);
+            if (next == Token.Kind.LEFT_PAREN) {
+                String name = tokens.literal(0);
+                match(Token.Type.IDENTIFIER);
+                match(Token.Kind.LEFT_PAREN);
+                if (match(Token.Kind.RIGHT_PAREN)) {
+                    return new Ast.Expression.Function(name, new ArrayList<>());
+                }
+                pushNesting(Token.Kind.LEFT_PAREN, name, new ArrayList<>());
+                return null;
+            } else if (next == Token.Kind.LEFT_BRACKET) {
+                String name = tokens.literal(0);
+                match(Token.Type.IDENTIFIER);
+                match(Token.Kind.LEFT_BRACKET);
+                pushNesting(Token.Kind.LEFT_BRACKET, name, null);
+                return null;
+            }
+        } else if (peek(Token.Type.OPERATOR) && peek(Token.Kind.LEFT_PAREN)) {
+            match(Token.Kind.LEFT_PAREN);
+            pushNesting(Token.Kind.LEFT_PAREN, null, null);
+            return null;
+        }
+        return parsePrimaryExpression();
+    }
+
+    private void pushNesting(Token.Kind nesting, String name, List<Ast.Expression> arguments) {
+        expressionFrames.add(new ExpressionFrame(nesting, name, arguments, 0, operands.size(), operators.size()));
+    }
+
+    /**
+     * Finishes the primary expression {@code frame} was nested in now that its
+     * inner {@code expression} has ended, or returns {@code null} after
+     * pushing a frame for the next function argument.
+     */
+    private Ast.Expression closeNesting(ExpressionFrame frame, Ast.Expression expression) throws ParseException {
+        if (frame.nesting == Token.Kind.LEFT_BRACKET) {
+            if (!match(Token.Kind.RIGHT_BRACKET)) {
+                int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
+                throw new ParseException("Missing ]", size);
+            }
+            return new Ast.Expression.Access(Optional.of(expression), frame.name);
+        } else if (frame.arguments == null) {
+            if (!match(Token.Kind.RIGHT_PAREN)) {
+                int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
+                throw new ParseException("Missing )", size);
+            }
+            return new Ast.Expression.Group(expression);
         }
-        String op = tokens.get(0).getLiteral();
-        match(Token.Type.OPERATOR);
-        //get second multiplicative exp
-        Ast.Expression rhs = parseMultiplicativeExpression();
-        return new Ast.Expression.Binary(op, lhs, rhs);
+        frame.arguments.add(expression);
+        if (match(Token.Kind.COMMA) && peek(Token.Kind.RIGHT_PAREN)) {
+            throw new ParseException("Trailing ,", tokens.get(-1).getIndex());
+        }
+        if (!match(Token.Kind.RIGHT_PAREN)) {
+            pushNesting(Token.Kind.LEFT_PAREN, frame.name, frame.arguments);
+            return null;
+        }
+        return new Ast.Expression.Function(frame.name, frame.arguments);
     }
 
     /**
@@ -495,18 +1770,21 @@ public final class Parser {
             int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
             throw new ParseException("Missing Operand", size);
         }
-        String temp = tokens.get(0).getLiteral();
+        //only copy the literal out for tokens that use it
+        Token.Type type = tokens.type(0);
+        String temp = type == Token.Type.IDENTIFIER || type == Token.Type.INTEGER || type == Token.Type.DECIMAL
+                ? tokens.literal(0) : null;
         if (peek(Token.Type.IDENTIFIER)) {
-            if (peek("NIL")) {
-                match("NIL");
+            if (peek(Token.Kind.NIL)) {
+                match(Token.Kind.NIL);
                 return new Ast.Expression.Literal(null);
             }
-            else if (peek("TRUE")) {
-                match("TRUE");
+            else if (peek(Token.Kind.TRUE)) {
+                match(Token.Kind.TRUE);
                 return new Ast.Expression.Literal(Boolean.TRUE);
             }
-            else if (peek("FALSE")) {
-                match("FALSE");
+            else if (peek(Token.Kind.FALSE)) {
+                match(Token.Kind.FALSE);
                 return new Ast.Expression.Literal(Boolean.FALSE);
             }
             else {
@@ -514,17 +1792,17 @@ public final class Parser {
                 match(Token.Type.IDENTIFIER);
                 //Ast.Expression id = parsePrimaryExpression();
                 //check for list or function
-                if (peek("(")) {
-                    match("(");
+                if (peek(Token.Kind.LEFT_PAREN)) {
+                    match(Token.Kind.LEFT_PAREN);
                     //function, create list of parameters
                     ArrayList<Ast.Expression> parameters = new ArrayList<>();
-                    while (!peek(")")) {
+                    while (!peek(Token.Kind.RIGHT_PAREN)) {
                         Ast.Expression nextExp = parseExpression();
                         parameters.add(nextExp);
                         //check for separating comma
-                        if (peek(",")) {
-                            match(",");
-                            if (peek(")")) {
+                        if (peek(Token.Kind.COMMA)) {
+                            match(Token.Kind.COMMA);
+                            if (peek(Token.Kind.RIGHT_PAREN)) {
                                 int size = tokens.get(-1).getIndex();
                                 throw new ParseException("Trailing ,", size);
                             }
@@ -535,21 +1813,20 @@ public final class Parser {
                             //throw new ParseException("Missing ,", tokens.get(0).getIndex() + tokens.get(0).getLiteral().length());
                         }*/
                     }
-                    if (!peek(")")) {
+                    if (!peek(Token.Kind.RIGHT_PAREN)) {
                         int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
                         throw new ParseException("Missing )", size);
                         //throw new ParseException("Missing )", tokens.index);
                     }
-                    match(")");
+                    match(Token.Kind.RIGHT_PAREN);
                     return new Ast.Expression.Function(temp, parameters);
                 }
-                else if (peek("[")) {
-                    match("[");
+                else if (peek(Token.Kind.LEFT_BRACKET)) {
+                    match(Token.Kind.LEFT_BRACKET);
                     //list, get next expression
-                    String nextName = tokens.get(0).getLiteral();
                     Ast.Expression nextExp = parseExpression();
-                    if (peek("]")) {
-                        match("]");
+                    if (peek(Token.Kind.RIGHT_BRACKET)) {
+                        match(Token.Kind.RIGHT_BRACKET);
                     }
                     else {
                         int size = tokens.get(-1).getIndex() + tokens.get(-1).getLiteral().length();
@@ -578,28 +1855,30 @@ public final class Parser {
         }
         else if (peek(Token.Type.INTEGER)) {
             match(Token.Type.INTEGER);
-            return new Ast.Expression.Literal(new BigInteger(temp));
+            return new Ast.Expression.Literal(integer(temp));
         }
         else if (peek(Token.Type.DECIMAL)) {
             match(Token.Type.DECIMAL);
-            return new Ast.Expression.Literal(new BigDecimal(temp));
+            return new Ast.Expression.Literal(decimals.computeIfAbsent(temp, BigDecimal::new));
         }
         else if (peek(Token.Type.CHARACTER)) {
+            Object value = tokens.value(0);
             match(Token.Type.CHARACTER);
-            //edit char
-            return new Ast.Expression.Literal(editChar(temp));
+            //edit char, unless the lexer already decoded it
+            return new Ast.Expression.Literal(intern(value != null ? value : editChar(tokens.literal(-1))));
         }
         else if (peek(Token.Type.STRING)) {
+            Object value = tokens.value(0);
             match(Token.Type.STRING);
-            //edit the string
-            return new Ast.Expression.Literal(editString(temp));
+            //edit the string, unless the lexer already decoded it
+            return new Ast.Expression.Literal(intern(value != null ? value : editString(tokens.literal(-1))));
         }
-        else if (peek(Token.Type.OPERATOR) && peek("(")) {
+        else if (peek(Token.Type.OPERATOR) && peek(Token.Kind.LEFT_PAREN)) {
             //create group expression
-            match("(");
+            match(Token.Kind.LEFT_PAREN);
             Ast.Expression inside = parseExpression();
-            if (peek(")")) {
-                match(")");
+            if (peek(Token.Kind.RIGHT_PAREN)) {
+                match(Token.Kind.RIGHT_PAREN);
                 return new Ast.Expression.Group(inside);
             }
             else {
@@ -613,15 +1892,53 @@ public final class Parser {
 
     }
 
+    /**
+     * Returns the value of an integer literal, from {@link #SMALL_INTEGERS}
+     * for the common small ones and otherwise from this parse's earlier
+     * literals, so that repeated literals share one {@link BigInteger}.
+     */
+    private BigInteger integer(String literal) {
+        if (!literal.isEmpty() && literal.length() <= 3) {
+            int value = 0;
+            for (int i = 0; i < literal.length() && value >= 0; i++) {
+                char c = literal.charAt(i);
+                value = c >= '0' && c <= '9' ? value * 10 + c - '0' : -1;
+            }
+            if (value >= 0 && value < SMALL_INTEGERS.length) {
+                return SMALL_INTEGERS[value];
+            }
+        }
+        try {
+            return integers.computeIfAbsent(literal, BigInteger::new);
+        } catch (NumberFormatException e) {
+            //a lone - lexed as an integer, which is only an error when recovering
+            if (!recovery) {
+                throw e;
+            }
+            throw new ParseException("Invalid Expression", tokens.get(-1).getIndex());
+        }
+    }
+
+    /**
+     * Returns the first equal string or character value of this parse.
+     */
+    private Object intern(Object value) {
+        Object interned = values.putIfAbsent(value, value);
+        return interned != null ? interned : value;
+    }
+
     /**
      * As in the lexer, returns {@code true} if the current sequence of tokens
      * matches the given patterns. Unlike the lexer, the pattern is not a regex;
      * instead it is either a {@link Token.Type}, which matches if the token's
-     * type is the same, or a {@link String}, which matches if the token's
-     * literal is the same.
+     * type is the same, a {@link Token.Kind}, which matches if the token's
+     * keyword or operator kind is the same, or a {@link String}, which matches
+     * if the token's literal is the same.
      *
      * In other words, {@code Token(IDENTIFIER, "literal")} is matched by both
-     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}.
+     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}, and
+     * {@code Token(IDENTIFIER, "END")} is also matched by {@code
+     * peek(Token.Kind.END)}.
      */
     private boolean peek(Object... patterns) {
         //throw new UnsupportedOperationException(); TODO (in lecture)
@@ -630,12 +1947,17 @@ public final class Parser {
                 return false;
             }
             else if (patterns[i] instanceof Token.Type) {
-                if (patterns[i] != tokens.get(i).getType()) {
+                if (patterns[i] != tokens.type(i)) {
+                    return false;
+                }
+            }
+            else if (patterns[i] instanceof Token.Kind) {
+                if (patterns[i] != tokens.kind(i)) {
                     return false;
                 }
             }
             else if (patterns[i] instanceof String) {
-                if (!patterns[i].equals(tokens.get(i).getLiteral())) {
+                if (!tokens.literalEquals(i, (String) patterns[i])) {
                     return false;
                 }
             }
@@ -661,122 +1983,114 @@ public final class Parser {
         return peek;
     }
 
-    //helper functions i made
+    /**
+     * Single pattern versions of {@link #peek(Object...)} and {@link
+     * #match(Object...)}. These are what the parser calls for lookahead, as
+     * they avoid allocating a varargs array and checking the pattern's class.
+     */
+    private boolean peek(Token.Type type) {
+        return tokens.has(0) && tokens.type(0) == type;
+    }
 
-    public char editChar(String temp) {
-        char test = temp.charAt(2);
-        int test2 = temp.length();
-        if (temp.length() == 3) {
-            // Handles a single character or an escaped character like '\n', '\t', etc.
-            return temp.charAt(1);
-        } else if (test == 'u') {
-            if (test2 == 8) {
-                return '\u000B'; // Vertical tab
-            }
-
-            // Add more conditions if other specific Unicode characters need to be supported
-        }else if (temp.length() == 4 && temp.charAt(1) == '\\') {
-            // Handles escape sequences
-            switch (temp.charAt(2)) {
-                case 'n':
-                    return '\n'; // Newline
-                case 't':
-                    return '\t'; // Tab
-                case 'r':
-                    return '\r'; // Carriage return
-                case 'b':
-                    return '\b'; // Backspace
-                case 'f':
-                    return '\f'; // Form feed
-                // Add cases for other escape sequences as needed
-                default:
-                    return 'x'; // Represents an unrecognized escape sequence
-            }
+    private boolean peek(Token.Kind kind) {
+        return tokens.has(0) && tokens.kind(0) == kind;
+    }
+
+    private boolean peek(String literal) {
+        return tokens.has(0) && tokens.literalEquals(0, literal);
+    }
+
+    private boolean match(Token.Type type) {
+        boolean peek = peek(type);
+        if (peek) {
+            tokens.advance();
         }
-        // Fallback for any other scenarios not covered
-        return 'x';
+        return peek;
+    }
+
+    private boolean match(Token.Kind kind) {
+        boolean peek = peek(kind);
+        if (peek) {
+            tokens.advance();
+        }
+        return peek;
     }
 
+    private boolean match(String literal) {
+        boolean peek = peek(literal);
+        if (peek) {
+            tokens.advance();
+        }
+        return peek;
+    }
 
+    /**
+     * Returns the kind of the current token, or {@link Token.Kind#NONE} at the
+     * end of the input, for switching on the next keyword or operator.
+     */
+    private Token.Kind kind() {
+        return tokens.has(0) ? tokens.kind(0) : Token.Kind.NONE;
+    }
 
+    //helper functions i made
 
+    public char editChar(String temp) {
+        return Lexer.decodeCharacter(temp);
+    }
 
     public String editString(String temp) {
-        //remove quotes
-        String noQuotes = temp.substring(1, temp.length() - 1);
-        //convert literal escape sequences into real escapes
-        StringBuilder res = new StringBuilder("");
-        String escapes = "[bnrt'\"\\\\]";
-        for (int i = 0; i < noQuotes.length(); i++) {
-            char c = noQuotes.charAt(i);
-            //check for first forward slash
-            if (c == '\\') {
-                if (i == noQuotes.length() - 1) {
-                    //just forward slash, append and move on
-                    res.append(c);
-                }
-                else {
-                    //next char may match escape sequence
-                    char next = noQuotes.charAt(i + 1);
-                    if ((next + "").matches(escapes)) {
-                        //ONLY append escape
-                        if (next == 'b') {
-                            res.append('\b');
-                        }
-                        else if (next == 'n') {
-                            res.append('\n');
-                        }
-                        else if (next == 'r') {
-                            res.append('\r');
-                        }
-                        else if (next == 't') {
-                            res.append('\t');
-                        }
-                        else if (next == '\'') {
-                            res.append('\'');
-                        }
-                        else if (next == '\"') {
-                            res.append('\"');
-                        }
-                        else if (next == '\\') {
-                            res.append('\\');
-                        }
-                        i++;
-                    }
-                    else {
-                        //just forward slash
-                        res.append(c);
-                    }
-                }
-            }
-            else {
-                res.append(c);
-            }
-        }
-        return res.toString();
+        return Lexer.decodeString(temp);
     }
 
-    private static final class TokenStream {
+    private static abstract class TokenStream {
 
-        private final List<Token> tokens;
-        private int index = 0;
+        int index = 0;
 
-        private TokenStream(List<Token> tokens) {
-            this.tokens = tokens;
+        /**
+         * Returns true if there is a token at index + offset.
+         */
+        public abstract boolean has(int offset);
+
+        /**
+         * Gets the token at index + offset.
+         */
+        public abstract Token get(int offset);
+
+        /**
+         * Gets the type of the token at index + offset.
+         */
+        public Token.Type type(int offset) {
+            return get(offset).getType();
         }
 
         /**
-         * Returns true if there is a token at index + offset.
+         * Gets the keyword or operator kind of the token at index + offset.
          */
-        public boolean has(int offset) {
-            return index + offset < tokens.size();
+        public Token.Kind kind(int offset) {
+            return get(offset).getKind();
         }
 
         /**
-         * Gets the token at index + offset.
+         * Gets the decoded value of the string or character literal at index +
+         * offset, or null if it was not decoded by the lexer.
          */
-        public Token get(int offset) {
-            return tokens.get(index + offset);
+        public Object value(int offset) {
+            return get(offset).getValue();
+        }
+
+        /**
+         * Gets the literal of the token at index + offset.
+         */
+        public String literal(int offset) {
+            return get(offset).getLiteral();
+        }
+
+        /**
+         * Returns true if the literal of the token at index + offset is exactly
+         * {@code literal}.
+         */
+        public boolean literalEquals(int offset, String literal) {
+            return literal.equals(get(offset).getLiteral());
         }
 
         /**
@@ -788,4 +2102,229 @@ public final class Parser {
 
     }
 
+    /**
+     * A stream over tokens that are all in memory, which can be counted and
+     * read from any index, as needed by lazy bodies, parallel parsing and
+     * reparsing.
+     */
+    private static abstract class RandomAccessTokenStream extends TokenStream {
+
+        /**
+         * Returns the total number of tokens.
+         */
+        public abstract int size();
+
+        /**
+         * Returns a new stream over the same tokens, starting at {@code index}.
+         */
+        public abstract RandomAccessTokenStream at(int index);
+
+    }
+
+    private static final class ListTokenStream extends RandomAccessTokenStream {
+
+        private final List<Token> tokens;
+
+        private ListTokenStream(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+
+        @Override
+        public RandomAccessTokenStream at(int index) {
+            ListTokenStream stream = new ListTokenStream(tokens);
+            stream.index = index;
+            return stream;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            return index + offset < tokens.size();
+        }
+
+        @Override
+        public Token get(int offset) {
+            return tokens.get(index + offset);
+        }
+
+    }
+
+    private static final class BufferTokenStream extends RandomAccessTokenStream {
+
+        private final TokenBuffer tokens;
+
+        private BufferTokenStream(TokenBuffer tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+
+        @Override
+        public RandomAccessTokenStream at(int index) {
+            BufferTokenStream stream = new BufferTokenStream(tokens);
+            stream.index = index;
+            return stream;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            return index + offset < tokens.size();
+        }
+
+        @Override
+        public Token get(int offset) {
+            return tokens.get(index + offset);
+        }
+
+        @Override
+        public Token.Type type(int offset) {
+            return tokens.getType(index + offset);
+        }
+
+        @Override
+        public Token.Kind kind(int offset) {
+            return tokens.getKind(index + offset);
+        }
+
+        @Override
+        public Object value(int offset) {
+            return null; //the buffer keeps no values, literals are decoded on demand
+        }
+
+        @Override
+        public String literal(int offset) {
+            return tokens.getLiteral(index + offset);
+        }
+
+        @Override
+        public boolean literalEquals(int offset, String literal) {
+            return tokens.literalEquals(index + offset, literal);
+        }
+
+    }
+
+    /**
+     * An expression being parsed in the explicit stack mode, and the primary
+     * expression it is nested in: a group or function call for {@code (}, a
+     * list offset for {@code [}, or none for the outermost expression.
+     */
+    private static final class ExpressionFrame {
+
+        private final Token.Kind nesting;
+        private final String name;
+        private final List<Ast.Expression> arguments;
+        private final int min;
+        private final int operandBase;
+        private final int operatorBase;
+
+        private ExpressionFrame(Token.Kind nesting, String name, List<Ast.Expression> arguments, int min, int operandBase, int operatorBase) {
+            this.nesting = nesting;
+            this.name = name;
+            this.arguments = arguments;
+            this.min = min;
+            this.operandBase = operandBase;
+            this.operatorBase = operatorBase;
+        }
+
+    }
+
+    /**
+     * A statement with blocks being parsed in the explicit stack mode, by the
+     * keyword it starts with, or {@link Token.Kind#NONE} for the outermost
+     * block.
+     */
+    private static final class BlockFrame {
+
+        private final Token.Kind kind;
+        private final Ast.Expression condition;
+        //the current block
+        private List<Ast.Statement> statements = new ArrayList<>();
+        //IF: the then block, once it has ended
+        private List<Ast.Statement> thenStatements = null;
+        //SWITCH: the finished cases, and the value of the current one
+        private List<Ast.Statement.Case> cases = null;
+        private Optional<Ast.Expression> value = null;
+
+        private BlockFrame(Token.Kind kind, Ast.Expression condition) {
+            this.kind = kind;
+            this.condition = condition;
+        }
+
+    }
+
+    private static final class Chunk {
+
+        private final List<Ast> declarations;
+        private final List<Integer> starts;
+        private final int end;
+        private final RuntimeException error;
+
+        private Chunk(List<Ast> declarations, List<Integer> starts, int end, RuntimeException error) {
+            this.declarations = declarations;
+            this.starts = starts;
+            this.end = end;
+            this.error = error;
+        }
+
+    }
+
+    /**
+     * Pulls tokens from an iterator into a ring buffer, keeping the token
+     * before the current one (for error indices) and any loaded ahead of it.
+     * The parser rarely looks more than a few tokens ahead, so the buffer
+     * starts small and only grows for longer lookahead.
+     */
+    private static final class LazyTokenStream extends TokenStream {
+
+        private final Iterator<Token> tokens;
+        private Token[] buffer = new Token[8];
+        private int loaded = 0;
+
+        private LazyTokenStream(Iterator<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            int target = index + offset;
+            while (loaded <= target && tokens.hasNext()) {
+                if (loaded - Math.max(index - 1, 0) == buffer.length) {
+                    grow();
+                }
+                buffer[loaded % buffer.length] = tokens.next();
+                loaded++;
+            }
+            return target < loaded;
+        }
+
+        @Override
+        public Token get(int offset) {
+            int target = index + offset;
+            if (target < 0 || target < index - 1 || !has(offset)) {
+                throw new IndexOutOfBoundsException("Index " + target + " is outside the token window.");
+            }
+            return buffer[target % buffer.length];
+        }
+
+        /**
+         * Doubles the buffer, keeping each kept token at its index modulo the
+         * new length.
+         */
+        private void grow() {
+            Token[] grown = new Token[buffer.length * 2];
+            for (int i = Math.max(index - 1, 0); i < loaded; i++) {
+                grown[i % grown.length] = buffer[i % buffer.length];
+            }
+            buffer = grown;
+        }
+
+    }
+
 }
\ No newline at end of file
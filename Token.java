@@ -11,14 +11,126 @@ public final class Token {
         OPERATOR
     }
 
+    /**
+     * Keywords and operators the parser dispatches on, so it can switch on the
+     * kind instead of comparing literals. Every other token is {@link #NONE}.
+     * The kind only depends on the literal, not the {@link Type}.
+     *
+     * <p>{@link #OR} is never produced by the {@link Lexer}, which lexes
+     * {@code ||} as two {@code |} tokens. It is kept because the parser has
+     * always accepted a {@code ||} token built by hand, as {@code &&}'s
+     * equal.</p>
+     */
+    public enum Kind {
+        NONE(null),
+        VAL("VAL"), VAR("VAR"), FUN("FUN"), DO("DO"), END("END"), LIST("LIST"),
+        IF("IF"), ELSE("ELSE"), WHILE("WHILE"), RETURN("RETURN"), LET("LET"),
+        SWITCH("SWITCH"), CASE("CASE"), DEFAULT("DEFAULT"),
+        NIL("NIL"), TRUE("TRUE"), FALSE("FALSE"),
+        EQUAL("=="), NOT_EQUAL("!="), AND("&&"), OR("||"),
+        ASSIGN("="), LESS("<"), GREATER(">"),
+        PLUS("+"), MINUS("-"), TIMES("*"), DIVIDE("/"), POWER("^"),
+        LEFT_PAREN("("), RIGHT_PAREN(")"), LEFT_BRACKET("["), RIGHT_BRACKET("]"),
+        COMMA(","), SEMICOLON(";"), COLON(":");
+
+        //keywords by hash(), which has no collisions among them
+        private static final Kind[] KEYWORDS = new Kind[32];
+        //single char operators by char, and the two char operators by first char
+        private static final Kind[] OPERATORS = new Kind[128];
+        private static final Kind[] DOUBLE_OPERATORS = new Kind[128];
+
+        static {
+            for (Kind kind : values()) {
+                String literal = kind.literal;
+                if (literal == null) {
+                    continue;
+                }
+                if (Character.isLetter(literal.charAt(0))) {
+                    int hash = hash(literal, 0, literal.length());
+                    if (KEYWORDS[hash] != null) {
+                        throw new AssertionError("Keyword hash collision: " + literal);
+                    }
+                    KEYWORDS[hash] = kind;
+                } else if (literal.length() == 1) {
+                    OPERATORS[literal.charAt(0)] = kind;
+                } else {
+                    DOUBLE_OPERATORS[literal.charAt(0)] = kind;
+                }
+            }
+        }
+
+        private final String literal;
+
+        Kind(String literal) {
+            this.literal = literal;
+        }
+
+        public String getLiteral() {
+            return literal;
+        }
+
+        public static Kind of(CharSequence literal) {
+            return of(literal, 0, literal.length());
+        }
+
+        /**
+         * Classifies the literal at {@code source[start, start + length)}
+         * without copying it: operators by a direct table lookup and keywords
+         * with a perfect hash on the first char, last char and length.
+         */
+        public static Kind of(CharSequence source, int start, int length) {
+            if (length == 0) {
+                return NONE;
+            }
+            char first = source.charAt(start);
+            if (first >= 128) {
+                return NONE;
+            }
+            Kind kind;
+            if (length == 1) {
+                kind = OPERATORS[first];
+            } else if (length == 2 && DOUBLE_OPERATORS[first] != null) {
+                kind = DOUBLE_OPERATORS[first];
+            } else {
+                kind = KEYWORDS[hash(source, start, length)];
+            }
+            if (kind == null || kind.literal.length() != length) {
+                return NONE;
+            }
+            for (int i = 0; i < length; i++) {
+                if (source.charAt(start + i) != kind.literal.charAt(i)) {
+                    return NONE;
+                }
+            }
+            return kind;
+        }
+
+        private static int hash(CharSequence source, int start, int length) {
+            return (source.charAt(start) * 17 + source.charAt(start + length - 1) * 2 + length) & 31;
+        }
+
+    }
+
     private final Type type;
     private final String literal;
     private final int index;
+    private final Kind kind;
+    private final Object value;
 
     public Token(Type type, String literal, int index) {
+        this(type, literal, index, Kind.of(literal));
+    }
+
+    Token(Type type, String literal, int index, Kind kind) {
+        this(type, literal, index, kind, null);
+    }
+
+    Token(Type type, String literal, int index, Kind kind, Object value) {
         this.type = type;
         this.literal = literal;
         this.index = index;
+        this.kind = kind;
+        this.value = value;
     }
 
     public Type getType() {
@@ -33,6 +145,19 @@ public final class Token {
         return index;
     }
 
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the decoded value of a string ({@link String}) or character
+     * ({@link Character}) literal, with the quotes removed and escapes
+     * replaced, or {@code null} if the lexer did not decode it.
+     */
+    public Object getValue() {
+        return value;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return obj instanceof Token
@@ -0,0 +1,154 @@
+package plc.project;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact, struct-of-arrays list of tokens. Instead of one {@link Token}
+ * object (and literal copy) per token, the buffer stores the type, start
+ * offset and length of every token in parallel {@code int} arrays over the
+ * source text. The {@link Token.Kind} is classified once as tokens are added
+ * and packed next to the type.
+ *
+ * {@link Token} objects are only created on request through {@link #get(int)}
+ * or {@link #asList()}, such as for error messages or code that still expects
+ * a {@code List<Token>}.
+ */
+public final class TokenBuffer {
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+    private static final Token.Kind[] KINDS = Token.Kind.values();
+
+    private final CharSequence source;
+    //type ordinal in the low byte, kind ordinal above it
+    private int[] types = new int[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    //token indices, only allocated once one differs from its start offset
+    private int[] indices = null;
+    private int size = 0;
+
+    public TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    public void add(Token.Type type, int start, int length) {
+        add(type, start, length, start);
+    }
+
+    /**
+     * Adds a token whose reported {@link Token#getIndex()} differs from its
+     * start offset in the source, as for UTF-8 input where the source is
+     * indexed in bytes but tokens are indexed in chars.
+     */
+    public void add(Token.Type type, int start, int length, int index) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            if (indices != null) {
+                indices = Arrays.copyOf(indices, capacity);
+            }
+        }
+        if (indices == null && index != start) {
+            indices = Arrays.copyOf(starts, types.length);
+        }
+        types[size] = type.ordinal() | Token.Kind.of(source, start, length).ordinal() << 8;
+        starts[size] = start;
+        lengths[size] = length;
+        if (indices != null) {
+            indices[size] = index;
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Token.Type getType(int i) {
+        return TYPES[types[check(i)] & 0xFF];
+    }
+
+    public Token.Kind getKind(int i) {
+        return KINDS[types[check(i)] >>> 8];
+    }
+
+    public int getStart(int i) {
+        return starts[check(i)];
+    }
+
+    /**
+     * Returns the index reported by the {@link Token} view of token {@code i}.
+     */
+    public int getIndex(int i) {
+        return indices == null ? starts[check(i)] : indices[check(i)];
+    }
+
+    public int getLength(int i) {
+        return lengths[check(i)];
+    }
+
+    /**
+     * Returns true if the literal of token {@code i} is exactly {@code literal},
+     * comparing against the source text without copying it.
+     */
+    public boolean literalEquals(int i, String literal) {
+        int length = lengths[check(i)];
+        if (length != literal.length()) {
+            return false;
+        }
+        int start = starts[i];
+        for (int j = 0; j < length; j++) {
+            if (source.charAt(start + j) != literal.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the literal of token {@code i} out of the source text.
+     */
+    public String getLiteral(int i) {
+        int start = starts[check(i)];
+        return source.subSequence(start, start + lengths[i]).toString();
+    }
+
+    /**
+     * Creates a {@link Token} view of token {@code i}.
+     */
+    public Token get(int i) {
+        return new Token(getType(i), getLiteral(i), getIndex(i), getKind(i));
+    }
+
+    /**
+     * Returns a read-only {@code List<Token>} view of the buffer, creating each
+     * {@link Token} as it is accessed.
+     */
+    public List<Token> asList() {
+        return new AbstractList<Token>() {
+
+            @Override
+            public Token get(int index) {
+                return TokenBuffer.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+        };
+    }
+
+    private int check(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+        }
+        return i;
+    }
+
+}